@@ -6,13 +6,18 @@ import static client.ClientInputHelper.fetchSignUpInput;
 import static client.ClientInputHelper.fetchUserOperationInput;
 import static client.ClientInputHelper.fetchSignupOrLoginInput;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
 import logs.Logger;
+import server.ItineraryIterator;
 import server.Server;
 import server.itinerary.Itinerary;
+import server.itinerary.ItineraryRecord;
 import server.user.User;
 
 /**
@@ -30,6 +35,9 @@ public class Client {
   private boolean isSignedIn;
   private Server userDbServer, keyValueStoreServer;
 
+  // Number of itineraries LIST fetches from the server at once
+  private static final int LIST_PAGE_SIZE = 100;
+
   /**
    * Constructor for client and initializes the client object.
    *
@@ -176,6 +184,15 @@ public class Client {
             break;
           }
 
+          // LIST is streamed from the server one page at a time, instead of in one response
+          String[] requestTokens = parseMessage(request);
+          if (requestTokens.length == 2 && requestTokens[0].equalsIgnoreCase("LIST")
+              && (requestTokens[1].equalsIgnoreCase("CREATED")
+              || requestTokens[1].equalsIgnoreCase("COLLAB"))) {
+            printItineraries(requestTokens[1].toUpperCase());
+            continue;
+          }
+
           logger.debug(false, "Sending request to the server: ", request);
           // Server executes the user inputs and sends the response
           String response = this.keyValueStoreServer.executeOperation(request, this.user.getEmailId());
@@ -185,11 +202,13 @@ public class Client {
           if (response != null) {
             // Execute Operation from server sent this response because of PUT method
             if (response.equalsIgnoreCase("Enter Itinerary Details")) {
-              sendItineraryToServer("ENTER", null);
+              sendItineraryToServer("ENTER", null, 0);
             } else if (response.contains("Update Itinerary Details")) {
               String[] updateResponse = parseMessage(response);
               // updateResponse[1] = Previous Itinerary id
-              sendItineraryToServer("UPDATE", updateResponse[1]);
+              // updateResponse[2] = Version of the itinerary that is being edited
+              int baseVersion = updateResponse.length > 2 ? Integer.parseInt(updateResponse[2]) : 0;
+              sendItineraryToServer("UPDATE", updateResponse[1], baseVersion);
             }
           }
         }
@@ -201,11 +220,17 @@ public class Client {
   }
 
   // Helper method to send Itinerary Inputs from the client to server
-  private void sendItineraryToServer(String enterOrUpdate, String previousItineraryId)
+  // An update is only applied if the itinerary is still at the base version (0 = always)
+  private void sendItineraryToServer(String enterOrUpdate, String previousItineraryId,
+                                     int baseVersion)
       throws IOException, ClassNotFoundException {
     // Ask for user input for itinerary details
     Itinerary itinerary = fetchItineraryInput(this.user, enterOrUpdate, previousItineraryId);
 
+    if (itinerary != null) {
+      itinerary.setBaseVersion(baseVersion);
+    }
+
     // To carry on getting continuous input from user for the 5 operations
     this.prompt = true;
 
@@ -216,7 +241,15 @@ public class Client {
       String itineraryResponse = this.keyValueStoreServer.putItinerary(itinerary, this.user.getEmailId());
       logger.debug(false, "Response from server: ", itineraryResponse);
 
-      if (itineraryResponse.startsWith("Error")) {
+      if (itineraryResponse.startsWith("Conflict")) {
+        String[] conflictResponse = parseMessage(itineraryResponse);
+        // conflictResponse[2] = Current version of the itinerary
+        System.out.println("The Itinerary was updated by another user to version "
+            + conflictResponse[2] + " while you were editing it. Your changes were not saved, "
+            + "please EDIT it again.");
+        logger.error(true, "Update of the Itinerary: ", itinerary.getName(),
+            " rejected, current version: ", conflictResponse[2]);
+      } else if (itineraryResponse.startsWith("Error")) {
         System.out.println("Response from server: " + itineraryResponse);
         logger.error(true, "Couldn't add your created Itinerary: ",
             itinerary.getName());
@@ -229,6 +262,28 @@ public class Client {
     }
   }
 
+  // Helper method to print the created or shared itineraries of the user, as they're fetched
+  private void printItineraries(String listType) {
+    logger.debug(false, "Listing the ", listType, " itineraries");
+    Iterator<Map.Entry<String, ItineraryRecord>> iterator = new ItineraryIterator(
+        this.keyValueStoreServer, listType, LIST_PAGE_SIZE, this.user.getEmailId());
+    int listedItineraries = 0;
+
+    try {
+      while (iterator.hasNext()) {
+        Map.Entry<String, ItineraryRecord> entry = iterator.next();
+        System.out.println("Itinerary Id: " + entry.getKey() + " Itinerary Name: "
+            + entry.getValue().getName());
+        listedItineraries++;
+      }
+    } catch (UncheckedIOException uncheckedIOException) {
+      logger.error(false, "Error while listing the itineraries!");
+      System.out.println("Error! The server is not reachable, the list is incomplete.");
+    }
+
+    System.out.println(listedItineraries + " Itineraries");
+  }
+
   void setSignedIn(boolean signedIn) {
     this.isSignedIn = signedIn;
   }
@@ -144,7 +144,15 @@ public class ClientInputHelper {
         System.out.println("2] Get an Itinerary:       GET  (Itinerary-ID)");
         System.out.println("3] Delete an Itinerary:    DELETE  (Itinerary-ID)");
         System.out.println("4] Edit an Itinerary:      EDIT (Itinerary-ID)");
-        System.out.println("5] Share an Itinerary:     SHARE (Itinerary-ID) (Email id)\n");
+        System.out.println("5] Share an Itinerary:     SHARE (Itinerary-ID) (Email id)");
+        System.out.println("6] Get an older Version:   GET  (Itinerary-ID) v(Version)");
+        System.out.println("7] Itinerary History:      HISTORY (Itinerary-ID)");
+        System.out.println("8] Overlapping Trips:      OVERLAP (MM/dd/yyyy) (MM/dd/yyyy)");
+        System.out.println("9] Conflicting Trips:      OVERLAP (Itinerary-ID)");
+        System.out.println("10] Search Itineraries:    SEARCH (Words)");
+        System.out.println("11] Share with many Users: SHARE (Itinerary-ID) (Email id) (Email id)");
+        System.out.println("12] Get many Itineraries:  MGET (Itinerary-ID) (Itinerary-ID)");
+        System.out.println("13] Delete many:           MDELETE (Itinerary-ID) (Itinerary-ID)\n");
         System.out.println("User Profile Operations:");
         // This will print all the itineraries that are created by this user,
         // and with whom he has shared it with
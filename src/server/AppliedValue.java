@@ -0,0 +1,31 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * A value read from the state of a replica, together with the apply cursor of the replica when it
+ * was read: the value reflects exactly the commands of the slots before the cursor. Used by the
+ * anti-entropy exchange, so that two replicas compare their states at the same slot.
+ *
+ * @param <T> - type of the value
+ */
+public class AppliedValue<T> implements Serializable {
+
+  // First slot that was not applied when the value was read
+  private final long applyCursor;
+
+  private final T value;
+
+  public AppliedValue(long applyCursor, T value) {
+    this.applyCursor = applyCursor;
+    this.value = value;
+  }
+
+  public long getApplyCursor() {
+    return applyCursor;
+  }
+
+  public T getValue() {
+    return value;
+  }
+}
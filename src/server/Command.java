@@ -0,0 +1,150 @@
+package server;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Write operation (PUT, PATCH, DELETE, EDIT, SHARE) that is agreed upon by PAXOS and stored in
+ * one slot of the replicated log.
+ */
+public class Command implements Serializable {
+
+  // Operation used to fill the holes of the log, which does not change the KeyValueStore
+  public static final String NO_OP = "NOOP";
+
+  // Operation that carries several client commands, which are agreed upon in one slot
+  public static final String BATCH = "BATCH";
+
+  // Unique ID of the command, so the proposer can find the result of its own command
+  private final String commandId;
+
+  // Operation name, Key (Itinerary ID) and the Value (shared email id)
+  private final String operation, key, value;
+
+  // Itinerary of a PUT, or changed fields of a PATCH, encoded with the ItineraryCodec. Null for
+  // all the other operations.
+  private final byte[] payload;
+
+  // The user who requested this operation
+  private final String clientEmailId;
+
+  // Time in milliseconds at which the command was created by the replica proposing it. Every
+  // replica applies it with this time, instead of the time of its own clock.
+  private final long proposedTime;
+
+  // Commands of a batch, applied in this order. Empty for all the other operations.
+  private final List<Command> commands;
+
+  public Command(String operation, String key, String value, String clientEmailId) {
+    this(operation, key, value, null, clientEmailId, Collections.emptyList());
+  }
+
+  private Command(String operation, String key, String value, byte[] payload,
+                  String clientEmailId, List<Command> commands) {
+    this.commandId = UUID.randomUUID().toString();
+    this.operation = operation;
+    this.key = key;
+    this.value = value;
+    this.payload = payload;
+    this.clientEmailId = clientEmailId;
+    this.commands = commands;
+    this.proposedTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Creates a command that stores the itinerary under the given key.
+   *
+   * @param key - Itinerary ID
+   * @param payload - itinerary encoded with the ItineraryCodec
+   * @param clientEmailId - The user who requested this operation
+   * @return - PUT command
+   */
+  public static Command put(String key, byte[] payload, String clientEmailId) {
+    return new Command("PUT", key, null, payload, clientEmailId, Collections.emptyList());
+  }
+
+  /**
+   * Creates a command that applies the changed fields of an update to the stored itinerary.
+   *
+   * @param key - Itinerary ID
+   * @param payload - patch encoded with the ItineraryCodec
+   * @param clientEmailId - The user who requested this operation
+   * @return - PATCH command
+   */
+  public static Command patch(String key, byte[] payload, String clientEmailId) {
+    return new Command("PATCH", key, null, payload, clientEmailId, Collections.emptyList());
+  }
+
+  /**
+   * Creates a command that fills an empty slot of the log without changing the KeyValueStore.
+   *
+   * @return - No-op command
+   */
+  public static Command noOp() {
+    return new Command(NO_OP, null, null, null);
+  }
+
+  /**
+   * Creates a command that carries the given commands in a single slot of the log.
+   *
+   * @param commands - commands of the batch
+   * @return - Batch command
+   */
+  public static Command batch(List<Command> commands) {
+    return new Command(BATCH, null, null, null, null, Collections.unmodifiableList(commands));
+  }
+
+  public String getCommandId() {
+    return commandId;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  public String getClientEmailId() {
+    return clientEmailId;
+  }
+
+  public long getProposedTime() {
+    return proposedTime;
+  }
+
+  public boolean isNoOp() {
+    return NO_OP.equals(operation);
+  }
+
+  public boolean isBatch() {
+    return BATCH.equals(operation);
+  }
+
+  public List<Command> getCommands() {
+    return commands;
+  }
+
+  @Override
+  public String toString() {
+    return "Command{" +
+        "commandId = " + commandId +
+        ", operation = " + operation +
+        ", key = " + key +
+        ", clientEmailId = " + clientEmailId +
+        (payload != null ? ", payload = " + payload.length + " bytes" : "") +
+        (isBatch() ? ", commands = " + commands.size() : "") +
+        '}';
+  }
+}
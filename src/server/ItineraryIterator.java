@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import server.itinerary.ItineraryPage;
+import server.itinerary.ItineraryRecord;
+
+/**
+ * Iterates over the itineraries created by or shared with a user, fetching them from the server
+ * one page at a time, so that a user with many itineraries never gets them in one response.
+ * An itinerary added or deleted during the iteration may or may not be returned.
+ */
+public class ItineraryIterator implements Iterator<Map.Entry<String, ItineraryRecord>> {
+
+  private final Server server;
+  private final String listType, clientEmailId;
+  private final int pageSize;
+
+  private Iterator<Map.Entry<String, ItineraryRecord>> currentPage;
+  private String nextCursor;
+  private boolean isLastPage;
+
+  /**
+   * Creates the iterator, the first page is fetched on the first call to hasNext.
+   *
+   * @param server - KeyValueStore server stub
+   * @param listType - CREATED or COLLAB
+   * @param pageSize - number of itineraries fetched at once
+   * @param clientEmailId - The user whose itineraries are listed
+   */
+  public ItineraryIterator(Server server, String listType, int pageSize, String clientEmailId) {
+    this.server = server;
+    this.listType = listType;
+    this.pageSize = pageSize;
+    this.clientEmailId = clientEmailId;
+    this.currentPage = Collections.emptyIterator();
+  }
+
+  /**
+   * @throws UncheckedIOException - if the next page can't be fetched from the server
+   */
+  @Override
+  public boolean hasNext() {
+    while (!currentPage.hasNext() && !isLastPage) {
+      ItineraryPage page;
+
+      try {
+        page = server.listItineraries(listType, nextCursor, pageSize, clientEmailId);
+      } catch (IOException ioException) {
+        throw new UncheckedIOException(ioException);
+      }
+
+      currentPage = page.getItineraries().entrySet().iterator();
+      nextCursor = page.getNextCursor();
+      isLastPage = !page.hasNextPage();
+    }
+
+    return currentPage.hasNext();
+  }
+
+  @Override
+  public Map.Entry<String, ItineraryRecord> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    return currentPage.next();
+  }
+}
@@ -3,6 +3,8 @@ package server;
 import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Map;
+import server.itinerary.ItineraryRecord;
 
 /**
  * This interface consists of methods for the Proposers and Acceptors, and the behavior
@@ -22,7 +24,8 @@ public interface PaxosServer extends Remote {
   /**
    * This method is used to start and initiate the PAXOS algorithm.
    * It is invoked when the server receives any PUT, DELETE, SHARE, EDIT update operations.
-   * And the server would then act as the proposer for the algorithm.
+   * And the server would then act as the proposer for the algorithm, and returns once the
+   * operation is applied from its slot of the replicated log.
    *
    * @param inputTokens - input operation token of PUT, DELETE, SHARE, EDIT operations
    * @return - Result of PUT, DELETE, SHARE, EDIT operation after PAXOS is completed.
@@ -31,39 +34,103 @@ public interface PaxosServer extends Remote {
   String startPaxos(String[] inputTokens, String operation, String clientEmailId)
       throws IOException, ClassNotFoundException;
 
+  /**
+   * Runs PAXOS for the given command, like startPaxos. Used to send a PUT with its encoded
+   * itinerary, and by the other replicas to forward a write to the leader in Multi-PAXOS mode.
+   *
+   * @param command - write operation
+   * @return - Result of the operation after PAXOS is completed
+   * @throws RemoteException
+   */
+  String submitCommand(Command command) throws IOException, ClassNotFoundException;
+
   /**
    * Proposer uses this method for sending prepare(sequenceId) message of PAXOS.
-   * This method is invoked on all the Acceptors by the Proposers.
+   * This method is invoked on all the Acceptors by the Proposers. The promise covers the given
+   * slot and every slot after it, so a stable leader (Multi-PAXOS) only needs to call it once.
    *
    * @param sequenceId - Proposer's Sequence number
-   * @param key - Key value for which the PAXOS algorithm is currently running for
-   * @return - true: if Acceptor accepts the proposal / false: if proposer rejects the proposal /
-   *           null if Acceptor fails
+   * @param slot - First slot of the replicated log for which the proposer asks for a promise
+   * @return - Promise with status Promised and the proposals already accepted from the slot
+   *           onwards, or status Rejected / null if Acceptor fails
    * @throws RemoteException
    */
-  Promise prepare(long sequenceId, String key, String operation, String clientEmailId) throws RemoteException;
+  Promise prepare(long sequenceId, long slot) throws RemoteException;
 
   /**
    * Proposer's uses this method for sending propose(sequenceId, proposedValue) message of PAXOS.
    * This method is invoked on all the Acceptors by the Proposers.
    *
    * @param sequenceId - Proposer's Sequence number
-   * @param key - Key value for which the PAXOS algorithm is currently running for
-   * @param value - Proposed value
+   * @param slot - Slot of the replicated log for which the value is proposed
+   * @param command - Proposed value
    * @return - true: if Acceptor accepts the proposal / false: if proposer rejects the proposal /
    *           null if Acceptor fails
    * @throws RemoteException
    */
-  Boolean propose(long sequenceId, String key, String value, String operation, String clientEmailId) throws RemoteException;
+  Boolean propose(long sequenceId, long slot, Command command) throws RemoteException;
 
   /**
-   * This method is used so all the Acceptors can learn the given value and commit their updates.
+   * This method is used so all the Acceptors can learn the command chosen for a slot.
+   * The command is committed once all the slots before it are committed.
    *
-   * @param key - Key that need to be updated
-   * @param value - Value that need to be updated
-   * @return - Result of PUT, DELETE, EDIT, SHARE operations when the commit actually occurs.
+   * @param slot - Slot of the replicated log
+   * @param command - Chosen command
    * @throws RemoteException
    */
-  String learn(String key, String value, String operation, String clientEmailId)
-      throws IOException, ClassNotFoundException;
-}
\ No newline at end of file
+  void learn(long slot, Command command) throws RemoteException;
+
+  /**
+   * Returns the apply cursor of this replica, i.e. how many slots of the replicated log it has
+   * applied. Used by the other replicas to find out whether they are lagging behind.
+   *
+   * @return - first slot that is not applied yet
+   * @throws RemoteException
+   */
+  long getApplyCursor() throws RemoteException;
+
+  /**
+   * Used by a lagging replica to fetch the chosen commands it missed, in bulk.
+   *
+   * @param fromSlot - first missing slot
+   * @param maximumCommands - maximum number of commands to return
+   * @return - chosen commands of the contiguous slots from the given slot (Key: Slot number),
+   *           empty if this replica does not have the given slot anymore
+   * @throws RemoteException
+   */
+  Map<Long, Command> getChosenCommands(long fromSlot, int maximumCommands)
+      throws RemoteException;
+
+  /**
+   * Used by a replica that is too far behind to catch up command by command. Returns a snapshot
+   * of the itineraries and the users of this replica, which the lagging replica installs
+   * instead of its own state.
+   *
+   * @return - serialized snapshot
+   * @throws RemoteException
+   */
+  byte[] getSnapshot() throws RemoteException;
+
+  /**
+   * Anti-entropy: returns the hashes of the Merkle tree over the itineraries of this replica, so
+   * that another replica can find the buckets where the two differ once it has applied the same
+   * slots.
+   *
+   * @return - hashes of the nodes (1 is the root and the children of node i are 2i and 2i + 1),
+   *           and the apply cursor they were read at
+   * @throws RemoteException
+   */
+  AppliedValue<long[]> getMerkleTree() throws RemoteException;
+
+  /**
+   * Anti-entropy: returns the itineraries of the given buckets (leaves) of the Merkle tree, which
+   * another replica uses to repair the buckets where it differs from this one.
+   *
+   * @param buckets - buckets of the Merkle tree
+   * @return - itineraries of these buckets (Key: Itinerary ID), and the apply cursor they were
+   *           read at
+   * @throws RemoteException
+   */
+  AppliedValue<Map<String, ItineraryRecord>> getBucketItineraries(int[] buckets)
+      throws RemoteException;
+}
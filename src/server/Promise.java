@@ -1,21 +1,30 @@
 package server;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * This class is used for tracking PAXOS metadata for each key.
+ * This class is used for tracking PAXOS metadata for each slot of the replicated log.
  * Also used for prepare() method's response.
  */
 public class Promise implements Serializable {
 
-  // Sequence Numbers for a key if a proposal for that key is accepted or not
+  // Sequence Numbers for a slot if a proposal for that slot is accepted or not
   private Long sequenceNumber, acceptedSequenceNumber;
 
-  // Flag for checking whether the proposal for a key was accepted or not
+  // Flag for checking whether the proposal for a slot was accepted or not
   private Boolean accepted;
 
-  // Accepted value for the key, if proposal was accepted and the status - Accepted / Promised / Rejected
-  private String acceptedValue, status;
+  // Accepted command for the slot, if proposal was accepted
+  private Command acceptedValue;
+
+  // Status - Accepted / Promised / Rejected
+  private String status;
+
+  // prepare() response: proposals accepted by the acceptor from the prepared slot onwards
+  // Key: Slot number, Value: Accepted proposal for the slot
+  private Map<Long, Promise> acceptedProposals;
 
   public Promise() {
     this.sequenceNumber = (long) Integer.MIN_VALUE;
@@ -23,6 +32,7 @@ public class Promise implements Serializable {
     this.accepted = false;
     this.acceptedValue = null;
     this.status = null;
+    this.acceptedProposals = new HashMap<>();
   }
 
   public Long getSequenceNumber() {
@@ -41,11 +51,11 @@ public class Promise implements Serializable {
     this.acceptedSequenceNumber = acceptedSequenceNumber;
   }
 
-  public String getAcceptedValue() {
+  public Command getAcceptedValue() {
     return acceptedValue;
   }
 
-  public void setAcceptedValue(String acceptedValue) {
+  public void setAcceptedValue(Command acceptedValue) {
     this.acceptedValue = acceptedValue;
   }
 
@@ -65,12 +75,21 @@ public class Promise implements Serializable {
     this.status = status;
   }
 
+  public Map<Long, Promise> getAcceptedProposals() {
+    return acceptedProposals;
+  }
+
+  public void setAcceptedProposals(Map<Long, Promise> acceptedProposals) {
+    this.acceptedProposals = acceptedProposals;
+  }
+
   public Promise(Promise promise) {
     this.sequenceNumber = promise.getSequenceNumber();
     this.acceptedSequenceNumber = promise.getAcceptedSequenceNumber();
     this.accepted = promise.getAccepted();
     this.acceptedValue = promise.getAcceptedValue();
     this.status = promise.getStatus();
+    this.acceptedProposals = new HashMap<>(promise.getAcceptedProposals());
   }
 
   @Override
@@ -78,7 +97,7 @@ public class Promise implements Serializable {
     return "Promise{" +
         "sequenceNumber = " + sequenceNumber +
         ", acceptedSequenceNumber = " + acceptedSequenceNumber +
-        ", acceptedValue = '" + acceptedValue + '\'' +
+        ", acceptedValue = " + acceptedValue +
         ", accepted = " + accepted +
         ", status = '" + status + '\'' +
         '}';
@@ -0,0 +1,111 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Fan-out of one remote call to all the replicas, that completes as soon as the required number
+ * of positive responses has arrived, or as soon as reaching it has become impossible. The caller
+ * never waits for the slowest replica, the responses that arrive later are ignored.
+ *
+ * @param <T> - response type of the remote call
+ */
+public class QuorumCall<T> {
+
+  private final int numberOfCalls;
+  private final int requiredPositiveResponses;
+  private final Predicate<T> isPositive;
+  private final CountDownLatch completed;
+
+  // Responses received until completion (null if the replica failed)
+  private final List<T> responses;
+  private int positiveResponses, negativeResponses;
+
+  private QuorumCall(int numberOfCalls, int requiredPositiveResponses, Predicate<T> isPositive) {
+    this.numberOfCalls = numberOfCalls;
+    this.requiredPositiveResponses = requiredPositiveResponses;
+    this.isPositive = isPositive;
+    this.completed = new CountDownLatch(1);
+    this.responses = new ArrayList<>();
+  }
+
+  /**
+   * Invokes all the calls in parallel and waits until the required number of positive responses
+   * has arrived, or until it can no longer be reached, or until the timeout.
+   *
+   * @param executorService - executor that runs the calls
+   * @param calls - remote calls, one per replica
+   * @param requiredPositiveResponses - number of positive responses needed (e.g. the majority)
+   * @param isPositive - whether a response counts as positive, null responses never do
+   * @param timeout - maximum time to wait
+   * @param unit - unit of the timeout
+   * @param <T> - response type of the remote call
+   * @return - responses that arrived before completion, failed calls are null
+   * @throws InterruptedException - if interrupted while waiting
+   */
+  public static <T> List<T> invoke(ExecutorService executorService, List<Callable<T>> calls,
+                                   int requiredPositiveResponses, Predicate<T> isPositive,
+                                   long timeout, TimeUnit unit) throws InterruptedException {
+
+    QuorumCall<T> quorumCall = new QuorumCall<>(calls.size(), requiredPositiveResponses,
+        isPositive);
+
+    if (calls.size() < requiredPositiveResponses) {
+      quorumCall.completed.countDown();
+    }
+
+    for (Callable<T> call : calls) {
+      try {
+        executorService.submit(() -> {
+          T response = null;
+
+          try {
+            response = call.call();
+          } catch (Exception exception) {
+            // A failed replica counts as a negative response
+          }
+
+          quorumCall.record(response);
+        });
+      } catch (RejectedExecutionException rejectedExecutionException) {
+        quorumCall.record(null);
+      }
+    }
+
+    quorumCall.completed.await(timeout, unit);
+    return quorumCall.complete();
+  }
+
+  // Records one response and completes the call if the outcome is decided
+  private synchronized void record(T response) {
+    if (completed.getCount() == 0) {
+      // Straggler, the outcome is already decided
+      return;
+    }
+
+    responses.add(response);
+
+    if (response != null && isPositive.test(response)) {
+      positiveResponses++;
+    } else {
+      negativeResponses++;
+    }
+
+    if (positiveResponses >= requiredPositiveResponses
+        || negativeResponses > numberOfCalls - requiredPositiveResponses) {
+      completed.countDown();
+    }
+  }
+
+  // Stops accepting responses and returns the ones received until now
+  private synchronized List<T> complete() {
+    completed.countDown();
+    return new ArrayList<>(responses);
+  }
+}
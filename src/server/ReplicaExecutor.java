@@ -0,0 +1,222 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import logs.Logger;
+
+/**
+ * Server-wide executors for the replica-to-replica calls, shared by all the server instances
+ * instead of every call creating its own threads. There is one executor for the PAXOS calls
+ * (prepare and propose fan-outs, learn broadcasts) and one for the 2PC calls (canCommit fan-outs,
+ * commit and abort broadcasts), so that participants blocking in canCommit cannot starve PAXOS
+ * of threads, and the other way around.
+ *
+ * A task submitted while the queue is full is rejected with a RejectedExecutionException, the
+ * caller is never made to run it: QuorumCall counts it as a negative response.
+ *
+ * Configured with system properties, where a property of one executor
+ * (replica.executor.paxos.threads, replica.executor.2pc.queue) overrides the one of both:
+ * replica.executor = pool (default) or virtual (one virtual thread per task, JDK 21+),
+ * replica.executor.threads = number of threads of the pool (default 64),
+ * replica.executor.queue = maximum number of queued tasks of the pool (default 10000),
+ * replica.executor.metricsSeconds = how often the metrics are logged (default 60, 0 = never).
+ */
+public class ReplicaExecutor extends AbstractExecutorService {
+
+  private static final ReplicaExecutor PAXOS_INSTANCE = new ReplicaExecutor("paxos");
+  private static final ReplicaExecutor TWO_PHASE_COMMIT_INSTANCE = new ReplicaExecutor("2pc");
+
+  private final String name;
+  private final ExecutorService delegate;
+  private final String mode;
+  private final Logger logger;
+
+  // Metrics
+  private final AtomicLong submittedTasks, completedTasks, rejectedTasks;
+  private final AtomicInteger activeTasks;
+
+  private ReplicaExecutor(String name) {
+    this.name = name;
+    this.logger = new Logger("src/logs/replica_executor.log", "ReplicaExecutor-" + name);
+    this.submittedTasks = new AtomicLong();
+    this.completedTasks = new AtomicLong();
+    this.rejectedTasks = new AtomicLong();
+    this.activeTasks = new AtomicInteger();
+
+    ExecutorService virtualThreadExecutor = null;
+
+    if ("virtual".equalsIgnoreCase(System.getProperty("replica.executor", "pool"))) {
+      virtualThreadExecutor = createVirtualThreadExecutor();
+    }
+
+    if (virtualThreadExecutor != null) {
+      this.delegate = virtualThreadExecutor;
+      this.mode = "virtual";
+    } else {
+      int threads = Math.max(1, getProperty("threads", 64));
+      int queueCapacity = Math.max(1, getProperty("queue", 10000));
+
+      // When the queue is full, the task is rejected: a caller waiting for a quorum must not be
+      // blocked running a call itself
+      this.delegate = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(queueCapacity),
+          daemonThreadFactory("replica-executor-" + name + "-"),
+          new ThreadPoolExecutor.AbortPolicy());
+      ((ThreadPoolExecutor) this.delegate).allowCoreThreadTimeOut(true);
+      this.mode = "pool of " + threads + " threads";
+    }
+
+    logger.debug(true, "Replica executor ", name, " started with ", mode);
+
+    long metricsSeconds = Long.getLong("replica.executor.metricsSeconds", 60);
+    if (metricsSeconds > 0) {
+      ScheduledExecutorService metricsReporter =
+          Executors.newSingleThreadScheduledExecutor(
+              daemonThreadFactory("replica-metrics-" + name + "-"));
+      metricsReporter.scheduleAtFixedRate(() -> logger.debug(false, getMetrics()),
+          metricsSeconds, metricsSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Returns the executor of the PAXOS calls, shared by all the server instances.
+   *
+   * @return - replica executor
+   */
+  public static ReplicaExecutor getPaxosInstance() {
+    return PAXOS_INSTANCE;
+  }
+
+  /**
+   * Returns the executor of the 2PC calls, shared by all the server instances.
+   *
+   * @return - replica executor
+   */
+  public static ReplicaExecutor getTwoPhaseCommitInstance() {
+    return TWO_PHASE_COMMIT_INSTANCE;
+  }
+
+  // Helper method that reads a property of this executor, or else the one of both executors
+  private int getProperty(String property, int defaultValue) {
+    return Integer.getInteger("replica.executor." + name + "." + property,
+        Integer.getInteger("replica.executor." + property, defaultValue));
+  }
+
+  // Helper method to create Executors.newVirtualThreadPerTaskExecutor(), the project is built
+  // for Java 11 so it can only be looked up at runtime
+  private ExecutorService createVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException exception) {
+      logger.error(true, "Virtual threads need JDK 21 or later, using the thread pool instead.");
+      return null;
+    }
+  }
+
+  // Helper method that names the threads, daemon so they never keep the JVM alive
+  private static ThreadFactory daemonThreadFactory(String prefix) {
+    AtomicInteger threadNumber = new AtomicInteger();
+
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    submittedTasks.incrementAndGet();
+
+    try {
+      delegate.execute(() -> {
+        activeTasks.incrementAndGet();
+
+        try {
+          command.run();
+        } finally {
+          activeTasks.decrementAndGet();
+          completedTasks.incrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException rejectedExecutionException) {
+      submittedTasks.decrementAndGet();
+      rejectedTasks.incrementAndGet();
+      throw rejectedExecutionException;
+    }
+  }
+
+  /**
+   * Number of tasks that are submitted but not started yet.
+   *
+   * @return - queue depth
+   */
+  public long getQueueDepth() {
+    return Math.max(0, submittedTasks.get() - completedTasks.get() - activeTasks.get());
+  }
+
+  /**
+   * Number of tasks that are running right now.
+   *
+   * @return - active tasks
+   */
+  public int getActiveTasks() {
+    return activeTasks.get();
+  }
+
+  public long getCompletedTasks() {
+    return completedTasks.get();
+  }
+
+  public long getRejectedTasks() {
+    return rejectedTasks.get();
+  }
+
+  /**
+   * Returns the metrics of the executor in one line, for logging.
+   *
+   * @return - metrics
+   */
+  public String getMetrics() {
+    return "Replica executor " + name + " (" + mode + "): queue depth = " + getQueueDepth()
+        + ", active tasks = " + getActiveTasks()
+        + ", completed tasks = " + getCompletedTasks()
+        + ", rejected tasks = " + getRejectedTasks();
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    return delegate.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+}
@@ -5,6 +5,7 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.Set;
 import server.itinerary.Itinerary;
+import server.itinerary.ItineraryPage;
 import server.user.User;
 import server.user.UserDB;
 
@@ -34,6 +35,20 @@ public interface Server extends Remote {
    */
   String putItinerary(Itinerary itinerary, String clientEmailId) throws IOException, ClassNotFoundException;
 
+  /**
+   * Returns one page of the itineraries created by or shared with the user, ordered by their ID.
+   * The ItineraryIterator uses it to go through all of them, one page at a time.
+   *
+   * @param listType - CREATED or COLLAB
+   * @param cursor - cursor of the page returned by the previous call, null for the first page
+   * @param limit - maximum number of itineraries in the page
+   * @param clientEmailId - The user whose itineraries are listed
+   * @return - page of itineraries
+   * @throws RemoteException
+   */
+  ItineraryPage listItineraries(String listType, String cursor, int limit, String clientEmailId)
+      throws RemoteException;
+
   /**
    * Method used to allow the client to create a new account.
    *
@@ -44,6 +44,8 @@ public class ServerMainApplication {
 
     Logger logger = new Logger("src/logs/server.log", "ServerMain");
     logger.debug(true, "Starting the servers...");
+    logger.debug(true, ReplicaExecutor.getPaxosInstance().getMetrics());
+    logger.debug(true, ReplicaExecutor.getTwoPhaseCommitInstance().getMetrics());
 
 
     // For 2PC
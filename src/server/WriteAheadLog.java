@@ -0,0 +1,476 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import logs.Logger;
+
+/**
+ * Append-only log of state transitions, which is forced to disk before the transition is
+ * acknowledged, and replayed when the server restarts.
+ *
+ * Appends are group committed: a single writer thread takes all the records appended while the
+ * previous group was being forced, writes them together, and forces the file once for the whole
+ * group. Concurrent appends therefore share one FileChannel.force instead of one each.
+ *
+ * The log is split in numbered segment files (name.00000001.wal, ...). A new segment is started
+ * when the current one is full, or when rollSegment() is called before a snapshot, so that the
+ * segments older than the snapshot can be deleted.
+ *
+ * Every record is stored as: length, CRC32 checksum, serialized record. A torn record at the end
+ * of the log (crash in the middle of a write) is dropped on replay. The replay stops at the first
+ * invalid record anywhere else too, since the records after it would be replayed after a gap: a
+ * copy of that segment and the later segments are moved aside to name.NNNNNNNN.wal.corrupt.
+ *
+ * If a write fails, the segment is cut back to the end of its last forced record, so that the next
+ * records are not written after a torn one, which the replay would drop with them. If that fails
+ * too, the log is failed and rejects all the records appended after it.
+ */
+public class WriteAheadLog {
+
+  // Record appended to the log, or a request to start a new segment if bytes is null.
+  // The future completes with the number of the segment the record was written to (or the
+  // number of the new segment).
+  private static class PendingRecord {
+    private final byte[] bytes;
+    private final CompletableFuture<Long> durable;
+
+    private PendingRecord(byte[] bytes) {
+      this.bytes = bytes;
+      this.durable = new CompletableFuture<>();
+    }
+  }
+
+  private final Path directory;
+  private final String name;
+  private final Pattern segmentPattern;
+  private final long maximumSegmentBytes;
+  private final Logger logger;
+
+  // Records read from the segments when the log was opened
+  private final List<Serializable> recoveredRecords;
+
+  // Records appended since the writer thread took the last group, guarded by this
+  private List<PendingRecord> pendingRecords;
+
+  // Segment that is being written, only used by the writer thread. Null if the log could not
+  // be opened, then nothing is written.
+  private FileChannel fileChannel;
+  private long segmentNumber, segmentBytes;
+
+  // Length of the segment that is being written up to its last forced record, only used by the
+  // writer thread
+  private long durableBytes;
+
+  // Whether a write failed and the segment could not be cut back after it
+  private volatile boolean isFailed;
+
+  // Whether the segment read last has a valid record of a class that could not be loaded
+  private boolean hasUnreadableRecord;
+
+  /**
+   * Opens (or creates) the log, reads the records which are already in its segments, and starts
+   * the writer thread.
+   *
+   * @param directory - directory of the segment files
+   * @param name - name of the log, the prefix of its segment files
+   * @param maximumSegmentBytes - size after which a new segment is started
+   * @param logger - logger
+   */
+  public WriteAheadLog(String directory, String name, long maximumSegmentBytes, Logger logger) {
+    this.directory = Paths.get(directory);
+    this.name = name;
+    this.segmentPattern = Pattern.compile(Pattern.quote(name) + "\\.(\\d+)\\.wal");
+    this.maximumSegmentBytes = maximumSegmentBytes;
+    this.logger = logger;
+    this.pendingRecords = new ArrayList<>();
+    this.recoveredRecords = new ArrayList<>();
+
+    try {
+      Files.createDirectories(this.directory);
+      TreeMap<Long, Path> segments = listSegments();
+      long validLength = 0;
+
+      for (Map.Entry<Long, Path> entry : segments.entrySet()) {
+        Path segment = entry.getValue();
+        this.segmentNumber = entry.getKey();
+        validLength = readRecords(segment);
+
+        if (validLength == Files.size(segment)) {
+          continue;
+        }
+
+        // Older segments are forced before the next one is started, so only the last segment
+        // can end with a torn record. Any other invalid record ends the replay.
+        if (segmentNumber == segments.lastKey() && !hasUnreadableRecord) {
+          logger.error(true, "Dropping the torn end of the write-ahead log segment: ",
+              segment.toString());
+        } else {
+          logger.error(true, "Invalid record in the write-ahead log segment: ",
+              segment.toString(), ", the records after it are NOT replayed and are moved to ",
+              corruptPath(segment).toString());
+          Files.copy(segment, corruptPath(segment), StandardCopyOption.REPLACE_EXISTING);
+
+          for (Path laterSegment : segments.tailMap(segmentNumber, false).values()) {
+            Files.move(laterSegment, corruptPath(laterSegment),
+                StandardCopyOption.REPLACE_EXISTING);
+          }
+        }
+
+        break;
+      }
+
+      if (segments.isEmpty()) {
+        this.segmentNumber = 1;
+        this.fileChannel = FileChannel.open(segmentPath(segmentNumber),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      } else {
+        // Continue the segment the replay stopped in, after its last valid record
+        this.fileChannel = FileChannel.open(segmentPath(segmentNumber),
+            StandardOpenOption.WRITE);
+        fileChannel.truncate(validLength);
+        fileChannel.position(validLength);
+        fileChannel.force(true);
+        this.segmentBytes = validLength;
+        this.durableBytes = validLength;
+      }
+    } catch (IOException ioException) {
+      logger.error(true, "Error opening the write-ahead log: ", directory, "/", name,
+          ". State changes will NOT survive a restart!");
+      this.fileChannel = null;
+    }
+
+    if (!recoveredRecords.isEmpty()) {
+      logger.debug(true, "Recovered ", String.valueOf(recoveredRecords.size()),
+          " records from the write-ahead log: ", name);
+    }
+
+    Thread writerThread = new Thread(this::run, "WriteAheadLog-" + name);
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Returns the records that were in the log when it was opened, in the order they were
+   * appended.
+   *
+   * @return - recovered records
+   */
+  public List<Serializable> getRecoveredRecords() {
+    return Collections.unmodifiableList(recoveredRecords);
+  }
+
+  /**
+   * Appends the record to the log.
+   *
+   * @param record - record to be appended
+   * @return - future that completes with the segment number once the record is on disk, or
+   *           exceptionally if it could not be written
+   */
+  public CompletableFuture<Long> append(Serializable record) {
+    byte[] bytes;
+
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bos);
+      oos.writeObject(record);
+      oos.flush();
+      bytes = bos.toByteArray();
+    } catch (IOException ioException) {
+      CompletableFuture<Long> failed = new CompletableFuture<>();
+      failed.completeExceptionally(ioException);
+      return failed;
+    }
+
+    return enqueue(new PendingRecord(bytes));
+  }
+
+  /**
+   * Starts a new segment. All the records appended before this call are in the older segments,
+   * all the records appended after it are in the new segment or in later ones.
+   *
+   * @return - future that completes with the number of the new segment, once the older segments
+   *           are on disk
+   */
+  public CompletableFuture<Long> rollSegment() {
+    return enqueue(new PendingRecord(null));
+  }
+
+  /**
+   * Deletes the segments older than the given one, once their records are covered by a
+   * snapshot.
+   *
+   * @param segmentNumber - first segment to keep
+   */
+  public void deleteSegmentsBefore(long segmentNumber) {
+    try {
+      for (Path segment : listSegments().headMap(segmentNumber).values()) {
+        Files.deleteIfExists(segment);
+        logger.debug(false, "Deleted the write-ahead log segment: ", segment.toString());
+      }
+    } catch (IOException ioException) {
+      logger.error(true, "Error deleting the old segments of the write-ahead log: ", name);
+    }
+  }
+
+  // Helper method that adds the record to the next group and wakes up the writer thread
+  private synchronized CompletableFuture<Long> enqueue(PendingRecord pendingRecord) {
+    if (isFailed) {
+      pendingRecord.durable.completeExceptionally(
+          new IOException("The write-ahead log " + name + " is failed"));
+      return pendingRecord.durable;
+    }
+
+    pendingRecords.add(pendingRecord);
+    notifyAll();
+    return pendingRecord.durable;
+  }
+
+  // Helper method that waits for the next group of records
+  private synchronized List<PendingRecord> takeGroup() throws InterruptedException {
+    while (pendingRecords.isEmpty()) {
+      wait();
+    }
+
+    List<PendingRecord> group = pendingRecords;
+    pendingRecords = new ArrayList<>();
+    return group;
+  }
+
+  // Writer loop: writes every group with one write and one force (per segment)
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      List<PendingRecord> group;
+
+      try {
+        group = takeGroup();
+      } catch (InterruptedException interruptedException) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      List<ByteBuffer> buffers = new ArrayList<>();
+      List<PendingRecord> written = new ArrayList<>();
+
+      try {
+        for (PendingRecord pendingRecord : group) {
+          if (pendingRecord.bytes == null || segmentBytes >= maximumSegmentBytes) {
+            // The records until now belong to the current segment
+            write(buffers);
+            complete(written, segmentNumber);
+            openNextSegment();
+          }
+
+          if (pendingRecord.bytes == null) {
+            pendingRecord.durable.complete(segmentNumber);
+          } else {
+            addRecord(buffers, pendingRecord.bytes);
+            written.add(pendingRecord);
+          }
+        }
+
+        write(buffers);
+        complete(written, segmentNumber);
+      } catch (IOException ioException) {
+        logger.error(true, "Error writing to the write-ahead log: ", name, ": ",
+            ioException.toString());
+
+        // The records written to the previous segments are completed already
+        for (PendingRecord pendingRecord : group) {
+          pendingRecord.durable.completeExceptionally(ioException);
+        }
+
+        truncateToDurableBytes();
+      }
+    }
+  }
+
+  // Helper method that cuts the segment back to the end of its last forced record after a failed
+  // write, or fails the log if it can't
+  private void truncateToDurableBytes() {
+    if (fileChannel == null) {
+      return;
+    }
+
+    try {
+      fileChannel.truncate(durableBytes);
+      fileChannel.position(durableBytes);
+      fileChannel.force(true);
+      segmentBytes = durableBytes;
+    } catch (IOException ioException) {
+      isFailed = true;
+      logger.error(true, "The write-ahead log ", name, " could not be repaired and is failed, ",
+          "no state change is accepted anymore: ", ioException.toString());
+
+      // The records appended meanwhile are rejected too
+      synchronized (this) {
+        for (PendingRecord pendingRecord : pendingRecords) {
+          pendingRecord.durable.completeExceptionally(ioException);
+        }
+
+        pendingRecords.clear();
+      }
+    }
+  }
+
+  // Helper method that tells the appenders their records are on disk
+  private void complete(List<PendingRecord> written, long segment) {
+    for (PendingRecord pendingRecord : written) {
+      pendingRecord.durable.complete(segment);
+    }
+
+    written.clear();
+  }
+
+  // Helper method that frames the record: length, checksum, bytes
+  private void addRecord(List<ByteBuffer> buffers, byte[] bytes) {
+    CRC32 checksum = new CRC32();
+    checksum.update(bytes);
+
+    ByteBuffer header = ByteBuffer.allocate(8);
+    header.putInt(bytes.length);
+    header.putInt((int) checksum.getValue());
+    header.flip();
+
+    buffers.add(header);
+    buffers.add(ByteBuffer.wrap(bytes));
+    segmentBytes += 8 + bytes.length;
+  }
+
+  // Helper method to write the framed records with one write, and force them to disk
+  private void write(List<ByteBuffer> buffers) throws IOException {
+    if (isFailed) {
+      throw new IOException("The write-ahead log " + name + " is failed");
+    }
+
+    if (fileChannel == null || buffers.isEmpty()) {
+      buffers.clear();
+      return;
+    }
+
+    ByteBuffer[] bufferArray = buffers.toArray(new ByteBuffer[0]);
+    long remaining = 0;
+
+    for (ByteBuffer buffer : bufferArray) {
+      remaining += buffer.remaining();
+    }
+
+    while (remaining > 0) {
+      remaining -= fileChannel.write(bufferArray);
+    }
+
+    fileChannel.force(false);
+    durableBytes = fileChannel.position();
+    buffers.clear();
+  }
+
+  // Helper method that closes the current segment and creates the next one
+  private void openNextSegment() throws IOException {
+    if (isFailed) {
+      throw new IOException("The write-ahead log " + name + " is failed");
+    }
+
+    segmentNumber++;
+    segmentBytes = 0;
+    durableBytes = 0;
+
+    if (fileChannel != null) {
+      fileChannel.close();
+      fileChannel = FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+  }
+
+  private Path segmentPath(long number) {
+    return directory.resolve(String.format("%s.%08d.wal", name, number));
+  }
+
+  // Path a segment is moved or copied to when its records are not replayed
+  private Path corruptPath(Path segment) {
+    return segment.resolveSibling(segment.getFileName() + ".corrupt");
+  }
+
+  // Helper method that lists the segments of this log, Key: Segment number
+  private TreeMap<Long, Path> listSegments() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        Matcher matcher = segmentPattern.matcher(file.getFileName().toString());
+
+        if (matcher.matches()) {
+          segments.put(Long.parseLong(matcher.group(1)), file);
+        }
+      }
+    }
+
+    return segments;
+  }
+
+  // Helper method that reads the records of a segment, and returns the length of its valid part
+  private long readRecords(Path segment) throws IOException {
+    long validLength = 0;
+    long segmentLength = Files.size(segment);
+    hasUnreadableRecord = false;
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(segment)))) {
+
+      while (true) {
+        int length = in.readInt();
+        int expectedChecksum = in.readInt();
+
+        // A length past the end of the segment is a torn or corrupt header, it is not allocated
+        if (length < 0 || length > segmentLength - validLength - 8) {
+          break;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes);
+
+        if ((int) checksum.getValue() != expectedChecksum) {
+          break;
+        }
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        recoveredRecords.add((Serializable) ois.readObject());
+        validLength += 8 + length;
+      }
+    } catch (EOFException eofException) {
+      // End of the segment, or a torn record at the end of it
+    } catch (ClassNotFoundException | ObjectStreamException exception) {
+      logger.error(true, "Unknown record in the write-ahead log: ", segment.toString(), ": ",
+          exception.toString());
+      hasUnreadableRecord = true;
+    }
+
+    return validLength;
+  }
+}
@@ -25,6 +25,9 @@ public class Itinerary implements Serializable {
   private int version;
   private String prevItineraryId;
 
+  // Version of the stored itinerary this update was made from, 0 if the update is unconditional
+  private int baseVersion;
+
   public Itinerary(String name, String location, Date startDate,
                    Date endDate, String description, String createdBy) {
     this.itineraryId = generateId();
@@ -39,6 +42,21 @@ public class Itinerary implements Serializable {
     this.prevItineraryId = null;
   }
 
+  // Used by the ItineraryCodec, to decode an itinerary with its original ID
+  Itinerary(String itineraryId, String name, String location, Date startDate, Date endDate,
+            String description, String createdBy) {
+    this.itineraryId = itineraryId;
+    this.name = name;
+    this.location = location;
+    this.startDate = startDate;
+    this.endDate = endDate;
+    this.description = description;
+    this.createdBy = createdBy;
+    this.listOfSharedWithUsers = new ArrayList<>();
+    this.version = 0;
+    this.prevItineraryId = null;
+  }
+
   public String getItineraryId() {
     return this.itineraryId;
   }
@@ -131,6 +149,15 @@ public class Itinerary implements Serializable {
     this.version = newVersion;
   }
 
+  public int getBaseVersion() {
+    return baseVersion;
+  }
+
+  // The update is rejected if the stored itinerary is no longer at this version
+  public void setBaseVersion(int baseVersion) {
+    this.baseVersion = baseVersion;
+  }
+
   @Override
   public String toString() {
     return "Itinerary Details:\n\n" +
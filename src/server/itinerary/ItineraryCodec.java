@@ -0,0 +1,255 @@
+package server.itinerary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compact binary encoding of an Itinerary, used to carry it in the PAXOS messages, the
+ * write-ahead log and the snapshots instead of Java serialization.
+ *
+ * Layout: format version (1 byte), then the name, so that it can be read for logging without
+ * decoding the rest (peekName), then the other fields. Strings are written as their length in
+ * bytes (int) followed by their UTF-8 bytes, a string that can be null is preceded by a boolean,
+ * a date is written as its time in milliseconds (NO_DATE if null). Version 2 appends the base
+ * version of an update. Versions 1 and 2 wrote the strings with writeUTF, which cannot encode a
+ * string of more than 65535 bytes.
+ *
+ * A patch (see ItineraryPatch) is written as the format version, the bits of the changed fields,
+ * the base version, and then only the changed fields in the same order as above.
+ */
+public final class ItineraryCodec {
+
+  // Version of the encoding, a new version has to keep decoding the older ones
+  private static final byte FORMAT_VERSION = 3;
+
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  private ItineraryCodec() {
+  }
+
+  /**
+   * Encodes the itinerary.
+   *
+   * @param itinerary - itinerary to be encoded
+   * @return - encoded itinerary
+   */
+  public static byte[] encode(Itinerary itinerary) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+
+    try (DataOutputStream out = new DataOutputStream(bos)) {
+      out.writeByte(FORMAT_VERSION);
+      writeString(out, itinerary.getName());
+      writeString(out, itinerary.getItineraryId());
+      writeString(out, itinerary.getLocation());
+      writeString(out, itinerary.getDescription());
+      writeDate(out, itinerary.getStartDate());
+      writeDate(out, itinerary.getEndDate());
+      writeString(out, itinerary.getCreatedBy());
+      writeString(out, itinerary.getPrevItineraryId());
+      out.writeInt(itinerary.getVersion());
+
+      List<String> sharedWithUsers = itinerary.getListOfSharedWithUsers();
+      out.writeInt(sharedWithUsers.size());
+
+      for (String emailId : sharedWithUsers) {
+        writeUtf8(out, emailId);
+      }
+
+      out.writeInt(itinerary.getBaseVersion());
+    } catch (IOException ioException) {
+      // Writing to a ByteArrayOutputStream does not fail
+      throw new IllegalStateException(ioException);
+    }
+
+    return bos.toByteArray();
+  }
+
+  /**
+   * Decodes an itinerary.
+   *
+   * @param bytes - encoded itinerary
+   * @return - itinerary
+   * @throws IOException - if the bytes are not an encoded itinerary
+   */
+  public static Itinerary decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    byte formatVersion = readFormatVersion(in);
+
+    String name = readString(in, formatVersion);
+    String itineraryId = readString(in, formatVersion);
+    String location = readString(in, formatVersion);
+    String description = readString(in, formatVersion);
+    Date startDate = readDate(in);
+    Date endDate = readDate(in);
+    String createdBy = readString(in, formatVersion);
+
+    Itinerary itinerary = new Itinerary(itineraryId, name, location, startDate, endDate,
+        description, createdBy);
+    itinerary.setPrevItineraryId(readString(in, formatVersion));
+    itinerary.setVersion(in.readInt());
+
+    int sharedWithUsersCount = in.readInt();
+
+    // Each email ID takes at least 2 bytes
+    if (sharedWithUsersCount < 0 || sharedWithUsersCount > in.available() / 2) {
+      throw new IOException("Invalid count of shared with users: " + sharedWithUsersCount);
+    }
+
+    List<String> sharedWithUsers = new ArrayList<>(sharedWithUsersCount);
+
+    for (int i = 0; i < sharedWithUsersCount; i++) {
+      sharedWithUsers.add(readUtf8(in, formatVersion));
+    }
+
+    itinerary.updateListOfSharedUsers(sharedWithUsers);
+
+    // Version 1 updates, still in the write-ahead log, are unconditional
+    if (formatVersion >= 2) {
+      itinerary.setBaseVersion(in.readInt());
+    }
+
+    return itinerary;
+  }
+
+  /**
+   * Encodes the patch.
+   *
+   * @param patch - patch to be encoded
+   * @return - encoded patch
+   */
+  public static byte[] encodePatch(ItineraryPatch patch) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+
+    try (DataOutputStream out = new DataOutputStream(bos)) {
+      out.writeByte(FORMAT_VERSION);
+      out.writeByte(patch.getChangedFields());
+      out.writeInt(patch.getBaseVersion());
+
+      if (patch.isChanged(ItineraryPatch.NAME)) {
+        writeString(out, patch.getName());
+      }
+      if (patch.isChanged(ItineraryPatch.LOCATION)) {
+        writeString(out, patch.getLocation());
+      }
+      if (patch.isChanged(ItineraryPatch.DESCRIPTION)) {
+        writeString(out, patch.getDescription());
+      }
+      if (patch.isChanged(ItineraryPatch.START_DATE)) {
+        writeDate(out, patch.getStartDate());
+      }
+      if (patch.isChanged(ItineraryPatch.END_DATE)) {
+        writeDate(out, patch.getEndDate());
+      }
+    } catch (IOException ioException) {
+      // Writing to a ByteArrayOutputStream does not fail
+      throw new IllegalStateException(ioException);
+    }
+
+    return bos.toByteArray();
+  }
+
+  /**
+   * Decodes a patch.
+   *
+   * @param bytes - encoded patch
+   * @return - patch
+   * @throws IOException - if the bytes are not an encoded patch
+   */
+  public static ItineraryPatch decodePatch(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    byte formatVersion = readFormatVersion(in);
+
+    int changedFields = in.readUnsignedByte();
+    int baseVersion = in.readInt();
+
+    String name =
+        (changedFields & ItineraryPatch.NAME) != 0 ? readString(in, formatVersion) : null;
+    String location =
+        (changedFields & ItineraryPatch.LOCATION) != 0 ? readString(in, formatVersion) : null;
+    String description =
+        (changedFields & ItineraryPatch.DESCRIPTION) != 0 ? readString(in, formatVersion) : null;
+    Date startDate = (changedFields & ItineraryPatch.START_DATE) != 0 ? readDate(in) : null;
+    Date endDate = (changedFields & ItineraryPatch.END_DATE) != 0 ? readDate(in) : null;
+
+    return new ItineraryPatch(changedFields, baseVersion, name, location, description,
+        startDate, endDate);
+  }
+
+  /**
+   * Reads only the name of an encoded itinerary, for logging.
+   *
+   * @param bytes - encoded itinerary
+   * @return - name of the itinerary, or null if the bytes are not an encoded itinerary
+   */
+  public static String peekName(byte[] bytes) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      byte formatVersion = readFormatVersion(in);
+      return readString(in, formatVersion);
+    } catch (IOException ioException) {
+      return null;
+    }
+  }
+
+  // Helper method that reads the format version, and checks that it can be decoded
+  private static byte readFormatVersion(DataInputStream in) throws IOException {
+    byte formatVersion = in.readByte();
+
+    if (formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+      throw new IOException("Unknown itinerary encoding version: " + formatVersion);
+    }
+
+    return formatVersion;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+
+    if (value != null) {
+      writeUtf8(out, value);
+    }
+  }
+
+  private static String readString(DataInputStream in, byte formatVersion) throws IOException {
+    return in.readBoolean() ? readUtf8(in, formatVersion) : null;
+  }
+
+  private static void writeUtf8(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  // Helper method that reads a string in the encoding of the format version
+  private static String readUtf8(DataInputStream in, byte formatVersion) throws IOException {
+    if (formatVersion < 3) {
+      return in.readUTF();
+    }
+
+    int length = in.readInt();
+
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Invalid string length: " + length);
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeDate(DataOutputStream out, Date date) throws IOException {
+    out.writeLong(date == null ? NO_DATE : date.getTime());
+  }
+
+  private static Date readDate(DataInputStream in) throws IOException {
+    long time = in.readLong();
+    return time == NO_DATE ? null : new Date(time);
+  }
+}
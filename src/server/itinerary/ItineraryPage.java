@@ -0,0 +1,37 @@
+package server.itinerary;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One page of the itineraries created by or shared with a user, as returned by
+ * Server.listItineraries. The itineraries are ordered by their ID, and the cursor of the next
+ * page is the ID of the last itinerary of this one.
+ */
+public final class ItineraryPage implements Serializable {
+
+  // Key: Itinerary ID, Value: itinerary, in the order of the IDs
+  private final Map<String, ItineraryRecord> itineraries;
+
+  // Cursor of the next page, null if this is the last page
+  private final String nextCursor;
+
+  public ItineraryPage(LinkedHashMap<String, ItineraryRecord> itineraries, String nextCursor) {
+    this.itineraries = Collections.unmodifiableMap(itineraries);
+    this.nextCursor = nextCursor;
+  }
+
+  public Map<String, ItineraryRecord> getItineraries() {
+    return itineraries;
+  }
+
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  public boolean hasNextPage() {
+    return nextCursor != null;
+  }
+}
@@ -0,0 +1,130 @@
+package server.itinerary;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Changed fields of an itinerary update, sent through PAXOS instead of the whole itinerary. It
+ * is computed against the stored version the update was made from (the base version), and every
+ * replica applies it to that same version, so the result is the same as for the full itinerary.
+ */
+public final class ItineraryPatch {
+
+  // Bits of the fields which are changed
+  static final int NAME = 1;
+  static final int LOCATION = 1 << 1;
+  static final int DESCRIPTION = 1 << 2;
+  static final int START_DATE = 1 << 3;
+  static final int END_DATE = 1 << 4;
+
+  private final int changedFields;
+  private final int baseVersion;
+
+  // New values, only set for the changed fields
+  private final String name, location, description;
+  private final Date startDate, endDate;
+
+  ItineraryPatch(int changedFields, int baseVersion, String name, String location,
+                 String description, Date startDate, Date endDate) {
+    this.changedFields = changedFields;
+    this.baseVersion = baseVersion;
+    this.name = name;
+    this.location = location;
+    this.description = description;
+    this.startDate = startDate;
+    this.endDate = endDate;
+  }
+
+  /**
+   * Creates the patch which turns the stored version into the updated itinerary.
+   *
+   * @param storedItinerary - stored version the update was made from
+   * @param updatedItinerary - itinerary with the new details
+   * @return - patch, based on the version of the stored itinerary
+   */
+  public static ItineraryPatch between(ItineraryRecord storedItinerary,
+                                       Itinerary updatedItinerary) {
+    int changedFields = 0;
+
+    if (!Objects.equals(storedItinerary.getName(), updatedItinerary.getName())) {
+      changedFields |= NAME;
+    }
+    if (!Objects.equals(storedItinerary.getLocation(), updatedItinerary.getLocation())) {
+      changedFields |= LOCATION;
+    }
+    if (!Objects.equals(storedItinerary.getDescription(), updatedItinerary.getDescription())) {
+      changedFields |= DESCRIPTION;
+    }
+    if (!Objects.equals(storedItinerary.getStartDate(), updatedItinerary.getStartDate())) {
+      changedFields |= START_DATE;
+    }
+    if (!Objects.equals(storedItinerary.getEndDate(), updatedItinerary.getEndDate())) {
+      changedFields |= END_DATE;
+    }
+
+    return new ItineraryPatch(changedFields, storedItinerary.getVersion(),
+        (changedFields & NAME) != 0 ? updatedItinerary.getName() : null,
+        (changedFields & LOCATION) != 0 ? updatedItinerary.getLocation() : null,
+        (changedFields & DESCRIPTION) != 0 ? updatedItinerary.getDescription() : null,
+        (changedFields & START_DATE) != 0 ? updatedItinerary.getStartDate() : null,
+        (changedFields & END_DATE) != 0 ? updatedItinerary.getEndDate() : null);
+  }
+
+  boolean isChanged(int field) {
+    return (changedFields & field) != 0;
+  }
+
+  int getChangedFields() {
+    return changedFields;
+  }
+
+  // The patch is only applied to this version of the itinerary
+  public int getBaseVersion() {
+    return baseVersion;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  String getLocation() {
+    return location;
+  }
+
+  String getDescription() {
+    return description;
+  }
+
+  Date getStartDate() {
+    return startDate;
+  }
+
+  Date getEndDate() {
+    return endDate;
+  }
+
+  @Override
+  public String toString() {
+    List<String> fields = new ArrayList<>();
+
+    if (isChanged(NAME)) {
+      fields.add("Name");
+    }
+    if (isChanged(LOCATION)) {
+      fields.add("Location");
+    }
+    if (isChanged(DESCRIPTION)) {
+      fields.add("Description");
+    }
+    if (isChanged(START_DATE)) {
+      fields.add("Start Date");
+    }
+    if (isChanged(END_DATE)) {
+      fields.add("End Date");
+    }
+
+    return "Patch of version " + baseVersion + " changing " + fields;
+  }
+}
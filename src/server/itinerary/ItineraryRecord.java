@@ -0,0 +1,178 @@
+package server.itinerary;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Immutable version of an Itinerary, as stored in the KeyValueStore. A write never changes a
+ * record, it publishes a new record in its place, so a reader always sees a complete version of
+ * the itinerary without locking or copying it.
+ */
+public final class ItineraryRecord implements Serializable {
+
+  private final String itineraryId;
+  private final String name, location, description;
+
+  // Dates are stored as their time in milliseconds, since Date is mutable. NO_DATE if not set.
+  private static final long NO_DATE = Long.MIN_VALUE;
+  private final long startTime, endTime;
+
+  // The user email who created this itinerary
+  private final String createdBy;
+
+  // Emails of the users this itinerary is shared with, unmodifiable
+  private final List<String> listOfSharedWithUsers;
+
+  private final int version;
+  private final String prevItineraryId;
+
+  private ItineraryRecord(String itineraryId, String name, String location, String description,
+                          long startTime, long endTime, String createdBy,
+                          List<String> listOfSharedWithUsers, int version,
+                          String prevItineraryId) {
+    this.itineraryId = itineraryId;
+    this.name = name;
+    this.location = location;
+    this.description = description;
+    this.startTime = startTime;
+    this.endTime = endTime;
+    this.createdBy = createdBy;
+    this.listOfSharedWithUsers = listOfSharedWithUsers;
+    this.version = version;
+    this.prevItineraryId = prevItineraryId;
+  }
+
+  /**
+   * Creates the record of an itinerary, with the same version.
+   *
+   * @param itinerary - itinerary
+   * @return - record of the itinerary
+   */
+  public static ItineraryRecord of(Itinerary itinerary) {
+    return new ItineraryRecord(itinerary.getItineraryId(), itinerary.getName(),
+        itinerary.getLocation(), itinerary.getDescription(), timeOf(itinerary.getStartDate()),
+        timeOf(itinerary.getEndDate()), itinerary.getCreatedBy(),
+        Collections.unmodifiableList(new ArrayList<>(itinerary.getListOfSharedWithUsers())),
+        itinerary.getVersion(), itinerary.getPrevItineraryId());
+  }
+
+  /**
+   * Creates the next version of this record, with the details of the updated itinerary. The ID,
+   * the owner and the shared users stay the same.
+   *
+   * @param updatedItinerary - itinerary with the new details
+   * @return - next version of the record
+   */
+  public ItineraryRecord withDetails(Itinerary updatedItinerary) {
+    return new ItineraryRecord(itineraryId, updatedItinerary.getName(),
+        updatedItinerary.getLocation(), updatedItinerary.getDescription(),
+        timeOf(updatedItinerary.getStartDate()), timeOf(updatedItinerary.getEndDate()),
+        createdBy, listOfSharedWithUsers, version + 1, updatedItinerary.getPrevItineraryId());
+  }
+
+  /**
+   * Creates the next version of this record, with the changed fields of the patch. The ID, the
+   * owner and the shared users stay the same.
+   *
+   * @param patch - changed fields, based on the version of this record
+   * @return - next version of the record
+   */
+  public ItineraryRecord withPatch(ItineraryPatch patch) {
+    return new ItineraryRecord(itineraryId,
+        patch.isChanged(ItineraryPatch.NAME) ? patch.getName() : name,
+        patch.isChanged(ItineraryPatch.LOCATION) ? patch.getLocation() : location,
+        patch.isChanged(ItineraryPatch.DESCRIPTION) ? patch.getDescription() : description,
+        patch.isChanged(ItineraryPatch.START_DATE) ? timeOf(patch.getStartDate()) : startTime,
+        patch.isChanged(ItineraryPatch.END_DATE) ? timeOf(patch.getEndDate()) : endTime,
+        createdBy, listOfSharedWithUsers, version + 1, prevItineraryId);
+  }
+
+  /**
+   * Creates a copy of this record, shared with one more user. The version stays the same.
+   *
+   * @param sharedUserEmail - email of the user
+   * @return - record shared with the user
+   */
+  public ItineraryRecord withSharedUser(String sharedUserEmail) {
+    return withSharedUsers(Collections.singletonList(sharedUserEmail));
+  }
+
+  /**
+   * Creates a copy of this record, shared with more users. The version stays the same.
+   *
+   * @param sharedUserEmails - emails of the users
+   * @return - record shared with the users
+   */
+  public ItineraryRecord withSharedUsers(List<String> sharedUserEmails) {
+    List<String> sharedWithUsers = new ArrayList<>(listOfSharedWithUsers);
+    sharedWithUsers.addAll(sharedUserEmails);
+
+    return new ItineraryRecord(itineraryId, name, location, description, startTime, endTime,
+        createdBy, Collections.unmodifiableList(sharedWithUsers), version, prevItineraryId);
+  }
+
+  public String getItineraryId() {
+    return itineraryId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getLocation() {
+    return location;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public Date getStartDate() {
+    return dateOf(startTime);
+  }
+
+  public Date getEndDate() {
+    return dateOf(endTime);
+  }
+
+  public String getCreatedBy() {
+    return createdBy;
+  }
+
+  public List<String> getListOfSharedWithUsers() {
+    return listOfSharedWithUsers;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public String getPrevItineraryId() {
+    return prevItineraryId;
+  }
+
+  @Override
+  public String toString() {
+    return "Itinerary Details:\n\n" +
+        "Name: " + name + '\n' +
+        "Location: " + location + '\n' +
+        "Description: " + description + '\n' +
+        "Start Date: " + getStartDate() + '\n' +
+        "End Date: " + getEndDate() + '\n' +
+        "Created by: " + createdBy + '\n' +
+        "List of Users with whom this Itinerary is shared with: "
+        + listOfSharedWithUsers + '\n' +
+        "Version: " + version + '\n';
+  }
+
+  private static long timeOf(Date date) {
+    return date == null ? NO_DATE : date.getTime();
+  }
+
+  private static Date dateOf(long time) {
+    return time == NO_DATE ? null : new Date(time);
+  }
+}
@@ -0,0 +1,171 @@
+package server.keyvaluestore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import logs.Logger;
+import server.Command;
+
+/**
+ * Adaptive batcher in front of the proposer. Concurrent writes are collected and agreed upon in
+ * one PAXOS instance (one slot), instead of running the PAXOS phases once per write.
+ *
+ * A batch is closed after maximum batch size commands, or after the maximum delay since its
+ * first command. When no batch is in flight, the batch is proposed right away, so a single
+ * write never waits for the delay. The batches only grow when the load grows.
+ */
+class CommandBatcher {
+
+  /**
+   * Proposes a command (or a batch of commands) through PAXOS.
+   */
+  interface BatchProposer {
+    boolean propose(Command command);
+  }
+
+  // Write waiting to be batched, and whether it was chosen
+  private static class PendingCommand {
+    private final Command command;
+    private final CompletableFuture<Boolean> chosen;
+
+    private PendingCommand(Command command) {
+      this.command = command;
+      this.chosen = new CompletableFuture<>();
+    }
+  }
+
+  private final BlockingQueue<PendingCommand> pendingCommands;
+  private final BatchProposer proposer;
+  private final Logger logger;
+  private final int maximumBatchSize;
+  private final long maximumDelayNanos;
+
+  // Limits the number of batches that are proposed at the same time (pipelining)
+  private final Semaphore batchesInFlight;
+  private final int maximumBatchesInFlight;
+
+  // Threads that propose the batches. They wait for the fan-outs on the replica executor, so
+  // they are kept apart from it.
+  private final ExecutorService proposingThreads;
+
+  /**
+   * Creates the batcher and starts its batching thread.
+   *
+   * @param serverId - server ID, used to name the batching thread
+   * @param proposer - proposes one command through PAXOS
+   * @param maximumBatchSize - maximum number of commands in one batch
+   * @param maximumDelayMicros - maximum time the first command of a batch waits for more commands
+   * @param maximumBatchesInFlight - maximum number of batches proposed at the same time
+   * @param logger - logger
+   */
+  CommandBatcher(String serverId, BatchProposer proposer, int maximumBatchSize,
+                 long maximumDelayMicros, int maximumBatchesInFlight, Logger logger) {
+    this.pendingCommands = new LinkedBlockingQueue<>();
+    this.proposer = proposer;
+    this.logger = logger;
+    this.maximumBatchSize = Math.max(1, maximumBatchSize);
+    this.maximumDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maximumDelayMicros));
+    this.maximumBatchesInFlight = Math.max(1, maximumBatchesInFlight);
+    this.batchesInFlight = new Semaphore(this.maximumBatchesInFlight);
+    this.proposingThreads = Executors.newFixedThreadPool(this.maximumBatchesInFlight,
+        runnable -> {
+          Thread thread = new Thread(runnable, "BatchProposer-" + serverId);
+          thread.setDaemon(true);
+          return thread;
+        });
+
+    Thread batchingThread = new Thread(this::run, "CommandBatcher-" + serverId);
+    batchingThread.setDaemon(true);
+    batchingThread.start();
+  }
+
+  /**
+   * Adds the command to the next batch.
+   *
+   * @param command - write command
+   * @return - future that completes with true once the batch containing the command is chosen,
+   *           or with false if consensus could not be reached
+   */
+  CompletableFuture<Boolean> submit(Command command) {
+    PendingCommand pendingCommand = new PendingCommand(command);
+    pendingCommands.add(pendingCommand);
+    return pendingCommand.chosen;
+  }
+
+  // Batching loop: collects the pending commands and hands every batch to a proposing thread
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        List<PendingCommand> batch = new ArrayList<>();
+        batch.add(pendingCommands.take());
+
+        // Only wait for more commands if other batches are still in flight
+        if (batchesInFlight.availablePermits() < maximumBatchesInFlight) {
+          long deadline = System.nanoTime() + maximumDelayNanos;
+
+          while (batch.size() < maximumBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            PendingCommand next = remaining > 0
+                ? pendingCommands.poll(remaining, TimeUnit.NANOSECONDS) : null;
+
+            if (next == null) {
+              break;
+            }
+
+            batch.add(next);
+          }
+        }
+
+        pendingCommands.drainTo(batch, maximumBatchSize - batch.size());
+
+        batchesInFlight.acquire();
+        proposingThreads.execute(() -> {
+          try {
+            propose(batch);
+          } finally {
+            batchesInFlight.release();
+          }
+        });
+      } catch (InterruptedException interruptedException) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // Helper method that proposes the batch in a single slot, and tells every writer the outcome
+  private void propose(List<PendingCommand> batch) {
+    Command command;
+
+    if (batch.size() == 1) {
+      command = batch.get(0).command;
+    } else {
+      List<Command> commands = new ArrayList<>();
+
+      for (PendingCommand pendingCommand : batch) {
+        commands.add(pendingCommand.command);
+      }
+
+      command = Command.batch(commands);
+      logger.debug(true, "Proposing a batch of ", String.valueOf(batch.size()), " commands.");
+    }
+
+    boolean chosen;
+
+    try {
+      chosen = proposer.propose(command);
+    } catch (RuntimeException runtimeException) {
+      logger.error(true, "Error while proposing ", command.toString());
+      chosen = false;
+    }
+
+    for (PendingCommand pendingCommand : batch) {
+      pendingCommand.chosen.complete(chosen);
+    }
+  }
+}
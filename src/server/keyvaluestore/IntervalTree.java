@@ -0,0 +1,192 @@
+package server.keyvaluestore;
+
+import java.util.List;
+
+/**
+ * Immutable interval tree over the dates of itineraries, used to find the itineraries which
+ * overlap a date range without scanning all of them.
+ *
+ * It is a treap ordered by the start of the intervals (then by key), where every node also
+ * keeps the latest end in its subtree, so a search skips every subtree which ends before the
+ * range. Finding the k overlapping intervals out of n costs O(log n + k) on average.
+ *
+ * Like the records, a tree is never changed: with and without return a new tree which shares
+ * all the nodes off the changed path, so a reader keeps a consistent tree without locking.
+ */
+final class IntervalTree {
+
+  private static final IntervalTree EMPTY = new IntervalTree(null);
+
+  private final Node root;
+
+  private IntervalTree(Node root) {
+    this.root = root;
+  }
+
+  static IntervalTree empty() {
+    return EMPTY;
+  }
+
+  boolean isEmpty() {
+    return root == null;
+  }
+
+  /**
+   * Returns a tree with one more interval.
+   *
+   * @param key - Itinerary ID
+   * @param start - start of the interval, in milliseconds
+   * @param end - end of the interval, in milliseconds, not before the start
+   * @return - new tree
+   */
+  IntervalTree with(String key, long start, long end) {
+    return new IntervalTree(insert(root, new Node(key, start, end, null, null)));
+  }
+
+  /**
+   * Returns a tree without the interval of the key.
+   *
+   * @param key - Itinerary ID
+   * @param start - start of the interval the key was added with
+   * @return - new tree, or this tree if the interval is not in it
+   */
+  IntervalTree without(String key, long start) {
+    Node newRoot = delete(root, key, start);
+    return newRoot == root ? this : new IntervalTree(newRoot);
+  }
+
+  /**
+   * Adds the keys of the intervals which overlap the range to the list, ordered by their start.
+   *
+   * @param from - start of the range, in milliseconds
+   * @param to - end of the range, in milliseconds, inclusive
+   * @param keys - list the keys are added to
+   */
+  void collectOverlapping(long from, long to, List<String> keys) {
+    collect(root, from, to, keys);
+  }
+
+  // Helper method of collectOverlapping, visits the subtree in order
+  private static void collect(Node node, long from, long to, List<String> keys) {
+    // Every interval of the subtree ends before the range
+    if (node == null || node.maxEnd < from) {
+      return;
+    }
+
+    collect(node.left, from, to, keys);
+
+    // The nodes on the right start after this one, so none of them overlaps either
+    if (node.start > to) {
+      return;
+    }
+
+    if (node.end >= from) {
+      keys.add(node.key);
+    }
+
+    collect(node.right, from, to, keys);
+  }
+
+  private static Node insert(Node node, Node newNode) {
+    if (node == null) {
+      return newNode;
+    }
+
+    if (compare(newNode.key, newNode.start, node) < 0) {
+      Node left = insert(node.left, newNode);
+      return left.priority > node.priority
+          ? left.withChildren(left.left, node.withChildren(left.right, node.right))
+          : node.withChildren(left, node.right);
+    } else {
+      Node right = insert(node.right, newNode);
+      return right.priority > node.priority
+          ? right.withChildren(node.withChildren(node.left, right.left), right.right)
+          : node.withChildren(node.left, right);
+    }
+  }
+
+  private static Node delete(Node node, String key, long start) {
+    if (node == null) {
+      return null;
+    }
+
+    int comparison = compare(key, start, node);
+
+    if (comparison < 0) {
+      Node left = delete(node.left, key, start);
+      return left == node.left ? node : node.withChildren(left, node.right);
+    } else if (comparison > 0) {
+      Node right = delete(node.right, key, start);
+      return right == node.right ? node : node.withChildren(node.left, right);
+    }
+
+    return merge(node.left, node.right);
+  }
+
+  // Helper method that joins two treaps, where every key of the left one is before the right one
+  private static Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    } else if (right == null) {
+      return left;
+    }
+
+    return left.priority > right.priority
+        ? left.withChildren(left.left, merge(left.right, right))
+        : right.withChildren(merge(left, right.left), right.right);
+  }
+
+  private static int compare(String key, long start, Node node) {
+    int comparison = Long.compare(start, node.start);
+    return comparison != 0 ? comparison : key.compareTo(node.key);
+  }
+
+  private static final class Node {
+
+    private final String key;
+    private final long start, end;
+
+    // Latest end of the intervals in this subtree
+    private final long maxEnd;
+
+    // Heap priority, derived from the key so that every replica builds the same shape
+    private final int priority;
+
+    private final Node left, right;
+
+    private Node(String key, long start, long end, Node left, Node right) {
+      this(key, start, end, mixPriority(key), left, right);
+    }
+
+    private Node(String key, long start, long end, int priority, Node left, Node right) {
+      this.key = key;
+      this.start = start;
+      this.end = end;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+
+      long latestEnd = end;
+
+      if (left != null) {
+        latestEnd = Math.max(latestEnd, left.maxEnd);
+      }
+      if (right != null) {
+        latestEnd = Math.max(latestEnd, right.maxEnd);
+      }
+
+      this.maxEnd = latestEnd;
+    }
+
+    private Node withChildren(Node newLeft, Node newRight) {
+      return newLeft == left && newRight == right
+          ? this
+          : new Node(key, start, end, priority, newLeft, newRight);
+    }
+
+    private static int mixPriority(String key) {
+      int hash = key.hashCode() * 0x9e3779b9;
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package server.keyvaluestore;
+
+import java.util.Arrays;
+
+/**
+ * Access control list of an itinerary: its owner and its collaborators, as the ordinals the
+ * ItineraryIndex interns the email IDs of the users with.
+ *
+ * The collaborators are kept in an open-addressing hash set of ints with linear probing, at most
+ * half full, so an ACL takes 4 to 8 bytes per collaborator whatever the ordinals are: the users an
+ * itinerary is shared with may have been interned far apart. Checking a user costs a constant
+ * number of probes and allocates nothing. Like the records, an ACL is immutable and a SHARE
+ * publishes a new one in its place.
+ */
+final class ItineraryAcl {
+
+  // Ordinal of a user who is not known to the index
+  static final int UNKNOWN_USER = -1;
+
+  // Table shared by the ACLs without collaborators
+  private static final int[] NO_COLLABORATORS = {UNKNOWN_USER};
+
+  private final int ownerOrdinal;
+
+  // Hash table of the ordinals of the collaborators, its length is a power of two and its free
+  // slots hold UNKNOWN_USER
+  private final int[] collaboratorTable;
+
+  private ItineraryAcl(int ownerOrdinal, int[] collaboratorTable) {
+    this.ownerOrdinal = ownerOrdinal;
+    this.collaboratorTable = collaboratorTable;
+  }
+
+  /**
+   * Creates the ACL of an itinerary.
+   *
+   * @param ownerOrdinal - ordinal of the owner, UNKNOWN_USER if it has no owner
+   * @param collaboratorOrdinals - ordinals of the collaborators, the array is not kept
+   * @return - ACL
+   */
+  static ItineraryAcl of(int ownerOrdinal, int[] collaboratorOrdinals) {
+    if (collaboratorOrdinals.length == 0) {
+      return new ItineraryAcl(ownerOrdinal, NO_COLLABORATORS);
+    }
+
+    // Smallest power of two that keeps the table at most half full
+    int capacity = Integer.highestOneBit(collaboratorOrdinals.length * 2 - 1) << 1;
+    int[] collaboratorTable = new int[capacity];
+    Arrays.fill(collaboratorTable, UNKNOWN_USER);
+
+    for (int collaboratorOrdinal : collaboratorOrdinals) {
+      if (collaboratorOrdinal == UNKNOWN_USER) {
+        continue;
+      }
+
+      int slot = slotOf(collaboratorTable, collaboratorOrdinal);
+      collaboratorTable[slot] = collaboratorOrdinal;
+    }
+
+    return new ItineraryAcl(ownerOrdinal, collaboratorTable);
+  }
+
+  boolean isOwner(int userOrdinal) {
+    return userOrdinal != UNKNOWN_USER && userOrdinal == ownerOrdinal;
+  }
+
+  boolean isCollaborator(int userOrdinal) {
+    return userOrdinal != UNKNOWN_USER
+        && collaboratorTable[slotOf(collaboratorTable, userOrdinal)] == userOrdinal;
+  }
+
+  // Whether the user is the owner or a collaborator of the itinerary
+  boolean allows(int userOrdinal) {
+    return isOwner(userOrdinal) || isCollaborator(userOrdinal);
+  }
+
+  // Slot of the table holding the ordinal, or the free slot where it would be inserted. The table
+  // always has a free slot, so the probing ends.
+  private static int slotOf(int[] table, int ordinal) {
+    int mask = table.length - 1;
+    int hash = ordinal * 0x9E3779B9;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+
+    while (table[slot] != UNKNOWN_USER && table[slot] != ordinal) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+}
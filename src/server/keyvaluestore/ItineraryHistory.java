@@ -0,0 +1,108 @@
+package server.keyvaluestore;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import server.itinerary.ItineraryRecord;
+
+/**
+ * Older versions of an itinerary, oldest first, with the time each of them was replaced by the
+ * next one: the time the replacing command was proposed at, so it is the same on every replica.
+ * Immutable like the records, a write publishes a new history in place of the old one,
+ * so reading a version never blocks the writes.
+ */
+class ItineraryHistory implements Serializable {
+
+  private static final ItineraryHistory EMPTY =
+      new ItineraryHistory(Collections.emptyList(), new long[0]);
+
+  private final List<ItineraryRecord> versions;
+
+  // Time in milliseconds at which versions[i] was replaced by the next version
+  private final long[] supersededTimes;
+
+  private ItineraryHistory(List<ItineraryRecord> versions, long[] supersededTimes) {
+    this.versions = versions;
+    this.supersededTimes = supersededTimes;
+  }
+
+  static ItineraryHistory empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Returns a history with one more version, keeping at most the given number of the newest
+   * versions.
+   *
+   * @param supersededVersion - version that was just replaced
+   * @param supersededTime - time at which it was replaced, in milliseconds
+   * @param maximumVersions - number of versions to keep
+   * @return - new history
+   */
+  ItineraryHistory with(ItineraryRecord supersededVersion, long supersededTime,
+                        int maximumVersions) {
+    int kept = Math.min(versions.size(), maximumVersions - 1);
+    int from = versions.size() - kept;
+
+    List<ItineraryRecord> newVersions = new ArrayList<>(versions.subList(from, versions.size()));
+    newVersions.add(supersededVersion);
+
+    long[] newSupersededTimes = new long[kept + 1];
+    System.arraycopy(supersededTimes, from, newSupersededTimes, 0, kept);
+    newSupersededTimes[kept] = supersededTime;
+
+    return new ItineraryHistory(Collections.unmodifiableList(newVersions), newSupersededTimes);
+  }
+
+  /**
+   * Returns a history without the versions which were replaced before the given time.
+   *
+   * @param cutoffTime - time in milliseconds
+   * @return - this history if nothing is pruned, the pruned history, or null if no version is left
+   */
+  ItineraryHistory prunedBefore(long cutoffTime) {
+    int from = 0;
+
+    while (from < versions.size() && supersededTimes[from] < cutoffTime) {
+      from++;
+    }
+
+    if (from == 0) {
+      return this;
+    } else if (from == versions.size()) {
+      return null;
+    }
+
+    long[] newSupersededTimes = new long[versions.size() - from];
+    System.arraycopy(supersededTimes, from, newSupersededTimes, 0, newSupersededTimes.length);
+
+    return new ItineraryHistory(
+        Collections.unmodifiableList(new ArrayList<>(versions.subList(from, versions.size()))),
+        newSupersededTimes);
+  }
+
+  /**
+   * Returns the given version of the itinerary.
+   *
+   * @param version - version number
+   * @return - record of the version, or null if it is not in the history
+   */
+  ItineraryRecord getVersion(int version) {
+    for (ItineraryRecord record : versions) {
+      if (record.getVersion() == version) {
+        return record;
+      }
+    }
+
+    return null;
+  }
+
+  List<ItineraryRecord> getVersions() {
+    return versions;
+  }
+
+  long getSupersededTime(int index) {
+    return supersededTimes[index];
+  }
+}
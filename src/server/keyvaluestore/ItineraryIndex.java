@@ -0,0 +1,319 @@
+package server.keyvaluestore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import server.itinerary.ItineraryRecord;
+
+/**
+ * Secondary indexes of the itineraries by owner and by collaborator, used by LIST, the access
+ * control list of every itinerary, used by the access checks instead of scanning the lists of
+ * the users and of the itineraries, and an interval tree of the dates of the itineraries every
+ * user can access, used by OVERLAP.
+ *
+ * The indexes are derived from the stored records only: the KeyValueStore re-indexes an
+ * itinerary every time its record is put, replaced or removed, so they follow every applied
+ * command, snapshot restore and anti-entropy repair, and a deleted itinerary leaves no entry
+ * behind. The writes are serialized, the reads don't lock.
+ *
+ * The IDs of the itineraries of a user are kept twice: in a hash set, for the membership checks
+ * of SEARCH in constant time, and in a sorted set, for the pages of LIST.
+ */
+class ItineraryIndex {
+
+  // Key: Email ID of the user, Value: IDs of the itineraries they created / can access as
+  // a collaborator
+  private final ConcurrentHashMap<String, Set<String>> itinerariesByOwner;
+  private final ConcurrentHashMap<String, Set<String>> itinerariesByCollaborator;
+
+  // Same entries, sorted so that LIST can return them one page at a time
+  private final ConcurrentHashMap<String, NavigableSet<String>> sortedItinerariesByOwner;
+  private final ConcurrentHashMap<String, NavigableSet<String>> sortedItinerariesByCollaborator;
+
+  // Key: Email ID of the user, Value: dates of the itineraries they created or collaborate on
+  private final ConcurrentHashMap<String, IntervalTree> tripsByUser;
+
+  // Key: Itinerary ID, Value: its owner and collaborators, as user ordinals
+  private final ConcurrentHashMap<String, ItineraryAcl> acls;
+
+  // Key: Email ID of the user, Value: ordinal interned for the ACLs. The ordinals are never
+  // reused, and only meaningful on this replica.
+  private final ConcurrentHashMap<String, Integer> userOrdinals;
+  private int nextUserOrdinal;
+
+  // Record every itinerary is indexed with, to find its old entries when it changes
+  private final Map<String, ItineraryRecord> indexedItineraries;
+
+  ItineraryIndex() {
+    this.itinerariesByOwner = new ConcurrentHashMap<>();
+    this.itinerariesByCollaborator = new ConcurrentHashMap<>();
+    this.sortedItinerariesByOwner = new ConcurrentHashMap<>();
+    this.sortedItinerariesByCollaborator = new ConcurrentHashMap<>();
+    this.tripsByUser = new ConcurrentHashMap<>();
+    this.acls = new ConcurrentHashMap<>();
+    this.userOrdinals = new ConcurrentHashMap<>();
+    this.indexedItineraries = new HashMap<>();
+  }
+
+  /**
+   * Indexes the current record of an itinerary, in place of its previous record.
+   *
+   * @param itineraryId - key of the itinerary
+   * @param itinerary - current record, or null if the itinerary was removed
+   */
+  synchronized void update(String itineraryId, ItineraryRecord itinerary) {
+    ItineraryRecord previousItinerary = itinerary == null
+        ? indexedItineraries.remove(itineraryId)
+        : indexedItineraries.put(itineraryId, itinerary);
+
+    // The new entries are added before the old ones are removed, so a reader never misses an
+    // itinerary which is only being replaced
+    if (itinerary != null) {
+      addEntry(itinerariesByOwner, sortedItinerariesByOwner, itinerary.getCreatedBy(),
+          itineraryId);
+
+      for (String emailId : itinerary.getListOfSharedWithUsers()) {
+        addEntry(itinerariesByCollaborator, sortedItinerariesByCollaborator, emailId,
+            itineraryId);
+      }
+    }
+
+    if (previousItinerary != null) {
+      if (itinerary == null
+          || !Objects.equals(previousItinerary.getCreatedBy(), itinerary.getCreatedBy())) {
+        removeEntry(itinerariesByOwner, sortedItinerariesByOwner,
+            previousItinerary.getCreatedBy(), itineraryId);
+      }
+
+      for (String emailId : previousItinerary.getListOfSharedWithUsers()) {
+        if (itinerary == null || !itinerary.getListOfSharedWithUsers().contains(emailId)) {
+          removeEntry(itinerariesByCollaborator, sortedItinerariesByCollaborator, emailId,
+              itineraryId);
+        }
+      }
+    }
+
+    updateAcl(itineraryId, previousItinerary, itinerary);
+    updateTrips(itineraryId, previousItinerary, itinerary);
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  synchronized void clear() {
+    itinerariesByOwner.clear();
+    itinerariesByCollaborator.clear();
+    sortedItinerariesByOwner.clear();
+    sortedItinerariesByCollaborator.clear();
+    tripsByUser.clear();
+    acls.clear();
+    indexedItineraries.clear();
+  }
+
+  // Whether the user is the owner or a collaborator of the itinerary
+  boolean canAccess(String emailId, String itineraryId) {
+    ItineraryAcl acl = acls.get(itineraryId);
+    return acl != null && acl.allows(ordinalOf(emailId));
+  }
+
+  boolean isCollaborator(String emailId, String itineraryId) {
+    ItineraryAcl acl = acls.get(itineraryId);
+    return acl != null && acl.isCollaborator(ordinalOf(emailId));
+  }
+
+  // IDs of the itineraries created by the user, a read-only view with constant time membership
+  Set<String> getCreatedItineraries(String emailId) {
+    Set<String> itineraryIds = emailId == null ? null : itinerariesByOwner.get(emailId);
+    return itineraryIds == null
+        ? Collections.emptySet()
+        : Collections.unmodifiableSet(itineraryIds);
+  }
+
+  // IDs of the itineraries shared with the user, a read-only view with constant time membership
+  Set<String> getSharedItineraries(String emailId) {
+    Set<String> itineraryIds = emailId == null ? null : itinerariesByCollaborator.get(emailId);
+    return itineraryIds == null
+        ? Collections.emptySet()
+        : Collections.unmodifiableSet(itineraryIds);
+  }
+
+  // IDs of the itineraries created by the user, a sorted read-only view
+  NavigableSet<String> getSortedCreatedItineraries(String emailId) {
+    return view(sortedItinerariesByOwner, emailId);
+  }
+
+  // IDs of the itineraries shared with the user, a sorted read-only view
+  NavigableSet<String> getSortedSharedItineraries(String emailId) {
+    return view(sortedItinerariesByCollaborator, emailId);
+  }
+
+  /**
+   * Returns the IDs of the itineraries the user can access whose dates overlap the range.
+   *
+   * @param emailId - Email ID of the user
+   * @param from - start of the range, in milliseconds
+   * @param to - end of the range, in milliseconds, inclusive
+   * @return - IDs of the itineraries, ordered by their start date
+   */
+  List<String> getOverlappingItineraries(String emailId, long from, long to) {
+    IntervalTree trips = emailId == null ? null : tripsByUser.get(emailId);
+    List<String> itineraryIds = new ArrayList<>();
+
+    if (trips != null) {
+      trips.collectOverlapping(from, to, itineraryIds);
+    }
+
+    return itineraryIds;
+  }
+
+  // Helper method that publishes the ACL of the itinerary, if its owner or collaborators changed
+  private void updateAcl(String itineraryId, ItineraryRecord previousItinerary,
+                         ItineraryRecord itinerary) {
+    if (itinerary == null) {
+      acls.remove(itineraryId);
+      return;
+    }
+
+    if (previousItinerary != null
+        && Objects.equals(previousItinerary.getCreatedBy(), itinerary.getCreatedBy())
+        && previousItinerary.getListOfSharedWithUsers()
+        .equals(itinerary.getListOfSharedWithUsers())) {
+      return;
+    }
+
+    List<String> sharedWithUsers = itinerary.getListOfSharedWithUsers();
+    int[] collaboratorOrdinals = new int[sharedWithUsers.size()];
+
+    for (int i = 0; i < collaboratorOrdinals.length; i++) {
+      collaboratorOrdinals[i] = internUser(sharedWithUsers.get(i));
+    }
+
+    int ownerOrdinal = itinerary.getCreatedBy() == null
+        ? ItineraryAcl.UNKNOWN_USER
+        : internUser(itinerary.getCreatedBy());
+
+    acls.put(itineraryId, ItineraryAcl.of(ownerOrdinal, collaboratorOrdinals));
+  }
+
+  // Helper method that returns the ordinal of the user, and assigns the next one to a new user
+  private int internUser(String emailId) {
+    Integer ordinal = userOrdinals.get(emailId);
+
+    if (ordinal == null) {
+      ordinal = nextUserOrdinal++;
+      userOrdinals.put(emailId, ordinal);
+    }
+
+    return ordinal;
+  }
+
+  private int ordinalOf(String emailId) {
+    Integer ordinal = emailId == null ? null : userOrdinals.get(emailId);
+    return ordinal == null ? ItineraryAcl.UNKNOWN_USER : ordinal;
+  }
+
+  // Helper method that moves the dates of the itinerary in the trees of its owner and
+  // collaborators. The tree of a user is replaced at once, so a reader sees either the old or
+  // the new dates.
+  private void updateTrips(String itineraryId, ItineraryRecord previousItinerary,
+                           ItineraryRecord itinerary) {
+    Set<String> emailIds = new HashSet<>();
+    addUsers(emailIds, previousItinerary);
+    addUsers(emailIds, itinerary);
+
+    for (String emailId : emailIds) {
+      boolean wasIndexed = hasDates(previousItinerary) && isUser(emailId, previousItinerary);
+      boolean isIndexed = hasDates(itinerary) && isUser(emailId, itinerary);
+
+      if (wasIndexed && isIndexed
+          && previousItinerary.getStartDate().equals(itinerary.getStartDate())
+          && previousItinerary.getEndDate().equals(itinerary.getEndDate())) {
+        continue;
+      }
+
+      tripsByUser.compute(emailId, (key, trips) -> {
+        IntervalTree newTrips = trips == null ? IntervalTree.empty() : trips;
+
+        if (wasIndexed) {
+          newTrips = newTrips.without(itineraryId, previousItinerary.getStartDate().getTime());
+        }
+        if (isIndexed) {
+          long start = itinerary.getStartDate().getTime();
+          newTrips = newTrips.with(itineraryId, start,
+              Math.max(start, itinerary.getEndDate().getTime()));
+        }
+
+        return newTrips.isEmpty() ? null : newTrips;
+      });
+    }
+  }
+
+  // Helper method that adds the owner and the collaborators of the itinerary to the set
+  private static void addUsers(Set<String> emailIds, ItineraryRecord itinerary) {
+    if (itinerary != null) {
+      if (itinerary.getCreatedBy() != null) {
+        emailIds.add(itinerary.getCreatedBy());
+      }
+
+      emailIds.addAll(itinerary.getListOfSharedWithUsers());
+    }
+  }
+
+  private static boolean isUser(String emailId, ItineraryRecord itinerary) {
+    return emailId.equals(itinerary.getCreatedBy())
+        || itinerary.getListOfSharedWithUsers().contains(emailId);
+  }
+
+  private static boolean hasDates(ItineraryRecord itinerary) {
+    return itinerary != null && itinerary.getStartDate() != null
+        && itinerary.getEndDate() != null;
+  }
+
+  // Helper method that adds the itinerary to the entries of the user in the hash and sorted
+  // indexes
+  private static void addEntry(Map<String, Set<String>> index,
+                               Map<String, NavigableSet<String>> sortedIndex, String emailId,
+                               String itineraryId) {
+    // The owner is null in an itinerary created without a signed in user
+    if (emailId != null) {
+      index.computeIfAbsent(emailId, key -> ConcurrentHashMap.newKeySet()).add(itineraryId);
+      sortedIndex.computeIfAbsent(emailId, key -> new ConcurrentSkipListSet<>())
+          .add(itineraryId);
+    }
+  }
+
+  // Helper method that removes the itinerary from the entries of the user, and the entries once
+  // they are empty
+  private static void removeEntry(Map<String, Set<String>> index,
+                                  Map<String, NavigableSet<String>> sortedIndex, String emailId,
+                                  String itineraryId) {
+    if (emailId != null) {
+      removeFrom(index, emailId, itineraryId);
+      removeFrom(sortedIndex, emailId, itineraryId);
+    }
+  }
+
+  private static <S extends Set<String>> void removeFrom(Map<String, S> index, String emailId,
+                                                         String itineraryId) {
+    index.computeIfPresent(emailId, (key, itineraryIds) -> {
+      itineraryIds.remove(itineraryId);
+      return itineraryIds.isEmpty() ? null : itineraryIds;
+    });
+  }
+
+  private static NavigableSet<String> view(Map<String, NavigableSet<String>> index,
+                                           String emailId) {
+    NavigableSet<String> itineraryIds = emailId == null ? null : index.get(emailId);
+    return itineraryIds == null
+        ? Collections.emptyNavigableSet()
+        : Collections.unmodifiableNavigableSet(itineraryIds);
+  }
+}
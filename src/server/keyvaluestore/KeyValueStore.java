@@ -1,28 +1,87 @@
 package server.keyvaluestore;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.util.Base64;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import logs.Logger;
 import server.Server;
 import server.itinerary.Itinerary;
+import server.itinerary.ItineraryPage;
+import server.itinerary.ItineraryPatch;
+import server.itinerary.ItineraryRecord;
 import server.user.User;
 import server.user.UserDB;
 
 /**
  * KeyValueStore that stores the Itinerary in a Concurrent HashMap with
- * Key: Itinerary ID,  Value: Itinerary.
+ * Key: Itinerary ID,  Value: ItineraryRecord.
+ *
+ * The records are immutable: a write publishes a new record in place of the old one, so the
+ * reads never lock and always see a complete version of an itinerary. The writes are applied
+ * one at a time, in slot order, by the replicated log.
  */
 public class KeyValueStore {
 
-  // KeyValueStore that stores Unique ID as Key, and Itinerary Object as value
-  private final ConcurrentHashMap<String, Itinerary> keyValueStore;
+  // KeyValueStore that stores Unique ID as Key, and the immutable Itinerary record as value
+  private final ConcurrentHashMap<String, ItineraryRecord> keyValueStore;
+
+  // LIST returns at most itinerary.list.pageSize itineraries, and the request of the next page.
+  // LIST|CREATED|-|limit requests the first page with another size.
+  private static final int LIST_PAGE_SIZE = Integer.getInteger("itinerary.list.pageSize", 50);
+  private static final int LIST_MAXIMUM_PAGE_SIZE = 1000;
+  private static final String LIST_FIRST_PAGE = "-";
+
+  // Format of the dates of OVERLAP, the same as the one the client enters the itineraries with
+  private static final String OVERLAP_DATE_FORMAT = "MM/dd/yyyy";
+
+  // Number of buckets of the Merkle tree
+  private static final int MERKLE_TREE_LEAVES = 1024;
+
+  // The last itinerary.history.maxVersions older versions of every itinerary are kept, and
+  // pruned once they were replaced more than itinerary.history.retentionSeconds before the last
+  // applied command (0 = never)
+  private static final int HISTORY_MAXIMUM_VERSIONS =
+      Integer.getInteger("itinerary.history.maxVersions", 16);
+  private static final long HISTORY_RETENTION_SECONDS =
+      Long.getLong("itinerary.history.retentionSeconds", 24 * 60 * 60);
+
+  // The GET responses of the last itinerary.cache.size read itineraries are kept (0 = none)
+  private static final int RESPONSE_CACHE_SIZE = Integer.getInteger("itinerary.cache.size", 10000);
+
+  // Older versions of the itineraries, Key: Itinerary ID
+  private final ConcurrentHashMap<String, ItineraryHistory> itineraryHistories;
+
+  // Time of the last applied command, as stamped by the replica which proposed it. It only
+  // depends on the applied commands, so all the replicas stamp and prune the histories alike.
+  private volatile long appliedTime;
   private final Logger logger;
   private UserDB userDatabase;
 
+  // Merkle tree over the itineraries, compared with the other replicas by the anti-entropy
+  private final MerkleTree merkleTree;
+
+  // Itineraries by owner and by collaborator, for LIST and the access checks
+  private final ItineraryIndex itineraryIndex;
+
+  // Words of the itineraries, for SEARCH
+  private final SearchIndex searchIndex;
+
+  // Rendered GET responses of the current versions of the itineraries
+  private final RenderedItineraryCache responseCache;
+
   /**
    * Constructor of KeyValueStore that initializes the Key-Value Store.
    *
@@ -31,7 +90,12 @@ public class KeyValueStore {
    */
   public KeyValueStore(String fileName, String serverId, Server userDb) {
     this.keyValueStore = new ConcurrentHashMap<>();
+    this.itineraryHistories = new ConcurrentHashMap<>();
     this.logger = new Logger(fileName, serverId);
+    this.merkleTree = new MerkleTree(MERKLE_TREE_LEAVES);
+    this.itineraryIndex = new ItineraryIndex();
+    this.searchIndex = new SearchIndex();
+    this.responseCache = new RenderedItineraryCache(RESPONSE_CACHE_SIZE);
 
     try {
       this.userDatabase = userDb.getUserDB();
@@ -48,6 +112,21 @@ public class KeyValueStore {
    */
   String[] validateTokens(String[] tokens) {
 
+    // SEARCH takes any number of words: SEARCH|word|word
+    if (tokens.length >= 2 && tokens[0].equalsIgnoreCase("SEARCH")) {
+      return new String[] {"Valid Operation. SEARCH.", "SEARCH"};
+    }
+
+    // The batch operations take any number of operands, a batch is agreed upon in one PAXOS
+    // instance: SHARE|id|email|email, MGET|id|id, MDELETE|id|id
+    if (tokens.length > 3 && tokens[0].equalsIgnoreCase("SHARE")) {
+      return new String[] {"Valid Operation. PAXOS. SHARE.", "SHARE"};
+    } else if (tokens.length >= 2 && tokens[0].equalsIgnoreCase("MGET")) {
+      return new String[] {"Valid Operation. MGET.", "MGET"};
+    } else if (tokens.length >= 2 && tokens[0].equalsIgnoreCase("MDELETE")) {
+      return new String[] {"Valid Operation. PAXOS. MDELETE.", "MDELETE"};
+    }
+
     if (tokens.length == 1) {
       // PUT
       if (tokens[0].equalsIgnoreCase("PUT")) {
@@ -64,6 +143,11 @@ public class KeyValueStore {
         return new String[] {"Valid Operation. PAXOS. DELETE.", "DELETE"};
       } else if (tokens[0].equalsIgnoreCase("EDIT")) {
         return new String[] {"Valid Operation. PAXOS. EDIT.", "EDIT"};
+      } else if (tokens[0].equalsIgnoreCase("HISTORY")) {
+        return new String[] {"Valid Operation. HISTORY.", "HISTORY"};
+      } else if (tokens[0].equalsIgnoreCase("OVERLAP")) {
+        // Itineraries overlapping the dates of another one: OVERLAP|id
+        return new String[] {"Valid Operation. OVERLAP.", "OVERLAP"};
       } else if (tokens[0].equalsIgnoreCase("LIST")) {
         if (tokens[1].equalsIgnoreCase("CREATED")) {
           return new String[] {"Valid Operation. LIST.", "CREATED"};
@@ -79,17 +163,27 @@ public class KeyValueStore {
         logger.error(true, "Invalid operation", tokens[0]);
         return new String[] {
             "Invalid operation: " + tokens[0] +
-                ". Only GET, DELETE, EDIT, and LIST are supported " +
+                ". Only GET, DELETE, EDIT, HISTORY, OVERLAP, SEARCH, and LIST are supported " +
                 "with Two operands."};
       }
     } else if (tokens.length == 3) {
       if (tokens[0].equalsIgnoreCase("SHARE")) {
         return new String[] {"Valid Operation. PAXOS. SHARE.", "SHARE"};
+      } else if (tokens[0].equalsIgnoreCase("GET")) {
+        // GET of an older version: GET|id|vN
+        return new String[] {"Valid Operation. GET.", "GET"};
+      } else if (tokens[0].equalsIgnoreCase("OVERLAP")) {
+        // Itineraries overlapping a date range: OVERLAP|MM/dd/yyyy|MM/dd/yyyy
+        return new String[] {"Valid Operation. OVERLAP.", "OVERLAP"};
       } else {
         logger.error(true, "Invalid operation", tokens[0]);
-        return new String[] {"Invalid operation: " + tokens[0] + ". Only SHARE is supported with " +
-            "Three operands."};
+        return new String[] {"Invalid operation: " + tokens[0] + ". Only SHARE, GET, and " +
+            "OVERLAP are supported with Three operands."};
       }
+    } else if (tokens.length == 4 && tokens[0].equalsIgnoreCase("LIST")
+        && (tokens[1].equalsIgnoreCase("CREATED") || tokens[1].equalsIgnoreCase("COLLAB"))) {
+      // Page of the list: LIST|CREATED|cursor|limit
+      return new String[] {"Valid Operation. LIST.", tokens[1].toUpperCase()};
     } else {
       logger.error(true, "Invalid number of operands in the request.");
       return new String[] {
@@ -106,293 +200,828 @@ public class KeyValueStore {
    * @param clientEmailId - The user who invokes this method will be the current client user
    * @return - response of the executed operation
    */
-  synchronized String executeOperation(String[] tokens, String clientEmailId)
+  String executeOperation(String[] tokens, String clientEmailId)
       throws IOException, ClassNotFoundException {
 
     if (tokens[0].equalsIgnoreCase("PUT")) {
       return "Enter Itinerary Details";
-    } else if (tokens[0].equalsIgnoreCase("INSERT")) {
-      // tokens[1] contains unique Key ID
-      // tokens[2] contains serialized itinerary
+    } else if (tokens[0].equalsIgnoreCase("GET") || tokens[0].equalsIgnoreCase("HISTORY")) {
+      // The Token[1] is the Random unique ID generated. Should it be int or string?
+      ItineraryRecord itinerary = this.keyValueStore.get(tokens[1]);
 
-      // Deserializing the Itinerary Byte Sized array object back to Itinerary
-      byte[] decodedBytes = Base64.getDecoder().decode(tokens[2]);
-      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(decodedBytes));
-      Itinerary itinerary = (Itinerary) ois.readObject();
+      // If Itinerary is not in the store
+      if (itinerary == null) {
+        logger.debug(true, "Itinerary Key : ", tokens[1], " not found in the store.");
+        return "Itinerary Not found";
+      }
 
-      logger.debug(true, "Successfully Deserialized the Itinerary: ", itinerary.getName());
+      // The older versions are readable by the users who can read the current one
+      if (!hasAccess(tokens[1], clientEmailId)) {
+        logger.debug(true, "You're not the Owner of this itinerary or " +
+            "You don't have access to it as a collaborator!");
+        return "No Authorization Access";
+      }
 
-      // Update Call
-      if (itinerary.getVersion() >= 1) {
+      logger.debug(true, "Found Itinerary Key : ", tokens[1],
+          "and Itinerary Name Value : ", itinerary.getName());
 
-        // Fetch old id, and update it with new itinerary
-        String oldItineraryId = itinerary.getPrevItineraryId();
+      if (tokens[0].equalsIgnoreCase("HISTORY")) {
+        return printHistory(tokens[1], itinerary);
+      } else if (tokens.length == 3) {
+        return printVersion(tokens[1], itinerary, tokens[2]);
+      }
 
-        // Preserving the previous Unique ID, but updating the Itinerary object
-        Itinerary updatedItinerary = this.keyValueStore.get(oldItineraryId);
+      return this.responseCache.render(tokens[1], itinerary);
 
-        // Updating the Old Itinerary with New Values
-        updatedItinerary.setName(itinerary.getName());
-        updatedItinerary.setLocation(itinerary.getLocation());
-        updatedItinerary.setDescription(itinerary.getDescription());
-        updatedItinerary.setStartDate(itinerary.getStartDate());
-        updatedItinerary.setEndDate(itinerary.getEndDate());
+    } else if (tokens[0].equalsIgnoreCase("EDIT")) {
+      String itineraryId = tokens[1];
+      ItineraryRecord itinerary = this.keyValueStore.get(itineraryId);
 
-        // Before putting the updated itinerary, gets the stored Itinerary list of shared user
-        updatedItinerary.updateListOfSharedUsers(
-            this.keyValueStore.get(oldItineraryId).getListOfSharedWithUsers());
-        updatedItinerary.setPrevItineraryId(itinerary.getPrevItineraryId());
+      // If No Itinerary found with key
+      if (itinerary == null) {
+        logger.debug(true, "Itinerary Key : ", tokens[1], " not found in the store.");
+        return "Itinerary Not found";
+      }
 
-        // First get the version of the stored Itinerary, and then update it
-        updatedItinerary.setVersion(this.keyValueStore.get(oldItineraryId).getVersion());
-        updatedItinerary.updateVersion();
+      // If the current user is owner of the itinerary
+      // OR Itinerary contains the current user as collaborator
+      // Then allow access to edit
+
+      if (hasAccess(itineraryId, clientEmailId)) {
 
-        // Update the old itinerary with an updated one
-        this.keyValueStore.replace(oldItineraryId, updatedItinerary);
+        // Access Granted
+        logger.debug(true, "Found Itinerary Key : ", tokens[1],
+            "and Itinerary Name Value : ", itinerary.getName());
 
-        logger.debug(true, "Itinerary Updated to: ", updatedItinerary.getName());
+        // The client sends back the version it read, see insertItinerary
+        return "Update Itinerary Details|" + itineraryId + "|" + itinerary.getVersion();
 
-        return oldItineraryId;
+      } else {
+        // No Authorization
+        logger.error(true, "User: ", clientEmailId,
+            " does not have access to Itinerary: ", itinerary.getName());
+        return "No Authorization access to Edit";
       }
 
-      User ownerUser = this.userDatabase.fetchUser(itinerary.getCreatedBy());
-      itinerary.updateVersion();
-      this.keyValueStore.put(tokens[1], itinerary);
 
-      // Adding this itinerary in the list of created itinerary of the Current User
-      ownerUser.setListOfCreatedItinerary(tokens[1]);
+    } else if (tokens[0].equalsIgnoreCase("SHARE")) {
+      // One or more emails: SHARE|id|email|email
+      return shareItinerary(tokens[1], Arrays.asList(tokens).subList(2, tokens.length),
+          clientEmailId);
+
+    } else if (tokens[0].equalsIgnoreCase("MGET")) {
+      // GET of every key: MGET|id|id. The server runs it at one apply cursor, so every key is
+      // read from the same state.
+      StringBuilder sb = new StringBuilder();
+
+      for (int i = 1; i < tokens.length; i++) {
+        sb.append("\nItinerary Id: ");
+        sb.append(tokens[i]);
+        sb.append("\n");
+        sb.append(executeOperation(new String[] {"GET", tokens[i]}, clientEmailId));
+        sb.append("\n");
+      }
 
-      logger.debug(true, "Itinerary '", itinerary.getName(),
-          "' Added in the List of Created Itineraries of User: ", ownerUser.getName());
+      return sb.toString();
 
-      return tokens[1];
+    } else if (tokens[0].equalsIgnoreCase("MDELETE")) {
+      // DELETE of every key, all or nothing: MDELETE|id|id
+      return deleteItineraries(Arrays.asList(tokens).subList(1, tokens.length), clientEmailId);
 
-    } else if (tokens[0].equalsIgnoreCase("GET")) {
-      // The Token[1] is the Random unique ID generated. Should it be int or string?
+    } else if (tokens[0].equalsIgnoreCase("DELETE")) {
 
-      // If Itinerary is not in the store
+      // If No itinerary found, return key not found
       if (!this.keyValueStore.containsKey(tokens[1])) {
-        logger.debug(true, "Itinerary Key : ", tokens[1], " not found in the store.");
-        return "Itinerary Not found";
+        logger.debug(true, "Key : ", tokens[1], " not found in the store. " +
+            "Not deleting anything.");
+
+        logger.debug(true, "No Itinerary found to delete. Not deleting anything");
+        return "No Itinerary Found";
       }
 
-      Itinerary itinerary = this.keyValueStore.get(tokens[1]);
-      User ownerUser = this.userDatabase.fetchUser(itinerary.getCreatedBy());
+      // Authorization - Only Owner of an itinerary can delete the itinerary
 
-      // If the Itinerary is created by owner OR
-      // whether the current user is in the list of shared user of itinerary
-      // This if for Authorization
+      ItineraryRecord itinerary = this.keyValueStore.get(tokens[1]);
 
-      if (ownerUser.getEmailId().equals(clientEmailId)
-          || itinerary.getListOfSharedWithUsers().contains(clientEmailId)) {
+      // If Current user is the owner Or Current user has access to the shared Itinerary
+      if (hasAccess(tokens[1], clientEmailId)) {
 
-        logger.debug(true, "Found Itinerary Key : ", tokens[1],
-            "and Itinerary Name Value : ", this.keyValueStore.get(tokens[1]).getName());
+        // Removing it from the indexes too, so that LIST doesn't show it anymore
+        this.keyValueStore.remove(tokens[1]);
+        this.itineraryHistories.remove(tokens[1]);
+        updateIndexes(tokens[1]);
+        logger.debug(true, "Itinerary: ", itinerary.getName(),
+            " is Deleted successfully by User: ", clientEmailId);
+        return "Itinerary Deleted Successfully!";
+      }
 
-        return this.keyValueStore.get(tokens[1]).toString();
-      } else if (ownerUser.getMapOfSharedItineraries().containsKey(itinerary.getItineraryId())) {
-        List<String> listOfTempUserEmailId = ownerUser
-            .getMapOfSharedItineraries().get(itinerary.getItineraryId());
+      logger.error(true,
+          "You are not the owner or you don't have access to delete this itinerary!");
+      return "You are not the owner or you don't have access to Delete this itinerary!";
 
-        if (listOfTempUserEmailId.contains(clientEmailId)) {
-          logger.debug(true, "Found Itinerary Key : ", tokens[1],
-              "and Itinerary Name Value : ", this.keyValueStore.get(tokens[1]).getName());
+    } else if (tokens[0].equalsIgnoreCase("OVERLAP")) {
+      return printOverlappingItineraries(tokens, clientEmailId);
 
-          return this.keyValueStore.get(tokens[1]).toString();
-        }
+    } else if (tokens[0].equalsIgnoreCase("SEARCH")) {
+      return printSearchedItineraries(tokens, clientEmailId);
+
+    } else {
+      // LIST
+      if (clientEmailId == null) {
+        logger.debug(true, "User is null, User not found");
+        return "User Not found";
       }
 
-      logger.debug(true, "You're not the Owner of this itinerary or " +
-          "You don't have access to it as a collaborator!");
-      return "No Authorization Access";
+      // First page, or the page after the cursor: LIST|CREATED|cursor|limit
+      String cursor = null;
+      int limit = LIST_PAGE_SIZE;
 
-    } else if (tokens[0].equalsIgnoreCase("EDIT")) {
-      String itineraryId = tokens[1];
+      if (tokens.length == 4) {
+        cursor = tokens[2].equals(LIST_FIRST_PAGE) ? null : tokens[2];
 
-      // If No Itinerary found with key
-      if (!keyValueStore.containsKey(tokens[1])) {
-        logger.debug(true, "Itinerary Key : ", tokens[1], " not found in the store.");
-        return "Itinerary Not found";
+        try {
+          limit = Integer.parseInt(tokens[3]);
+        } catch (NumberFormatException numberFormatException) {
+          return "Invalid page size: " + tokens[3];
+        }
       }
 
-      Itinerary itinerary = this.keyValueStore.get(itineraryId);
-      User ownerUser = this.userDatabase.fetchUser(itinerary.getCreatedBy());
-      User currentUser = this.userDatabase.fetchUser(clientEmailId);
+      // CREATED: Itineraries created by user, COLLAB: Itineraries shared with the user
+      return printListOfCreatedOrSharedItineraries(tokens[1].toUpperCase(),
+          listItineraries(tokens[1], cursor, limit, clientEmailId));
+    }
 
-      // If the current user is owner of the itinerary
-      // OR Itinerary contains the current user as collaborator
-      // Then allow access to edit
+    //return "INVALID OPERATION - Under Development";
+  }
 
-      if (itinerary.getListOfSharedWithUsers().contains(clientEmailId)
-          || currentUser.getListOfSharedItinerary().contains(tokens[1])
-          || currentUser.getListOfCreatedItinerary().contains(tokens[1])
-          || currentUser.getEmailId().equals(ownerUser.getEmailId())) {
+  /**
+   * Stores the itinerary of a chosen PUT command. If it is an update (version >= 1), the stored
+   * itinerary it updates is replaced by a new record with its new values, which keeps its ID and
+   * list of shared users, and has the next version.
+   *
+   * An update with a base version is only applied if the stored itinerary is still at that
+   * version, otherwise another user updated it since it was read and the update is rejected with
+   * "Conflict|ID|current version", so that no update is silently lost. Every replica applies the
+   * commands in the same order, so they all take the same decision.
+   *
+   * @param itineraryId - unique Key ID of a new itinerary
+   * @param itinerary   - decoded itinerary
+   * @return - ID of the stored itinerary, or the conflict or error message
+   */
+  String insertItinerary(String itineraryId, Itinerary itinerary) {
+    // Update Call
+    if (itinerary.getVersion() >= 1) {
 
-        // Access Granted
-        logger.debug(true, "Found Itinerary Key : ", tokens[1],
-            "and Itinerary Name Value : ", keyValueStore.get(tokens[1]).getName());
+      // Fetch old id, and update it with new itinerary
+      String oldItineraryId = itinerary.getPrevItineraryId();
 
-        return "Update Itinerary Details|" + itineraryId;
+      ItineraryRecord storedItinerary = this.keyValueStore.get(oldItineraryId);
+      String rejection =
+          checkUpdate(oldItineraryId, storedItinerary, itinerary.getBaseVersion());
 
-      } else {
-        // No Authorization
-        logger.error(true, "User: ", currentUser.getName(),
-            " does not have access to Itinerary: ", itinerary.getName());
-        return "No Authorization access to Edit";
+      if (rejection != null) {
+        return rejection;
       }
 
+      // Next version of the stored record with the new values, which keeps the previous
+      // Unique ID and list of shared users
+      publishUpdate(oldItineraryId, storedItinerary, storedItinerary.withDetails(itinerary));
 
-    } else if (tokens[0].equalsIgnoreCase("SHARE")) {
+      return oldItineraryId;
+    }
+
+    itinerary.updateVersion();
+    this.keyValueStore.put(itineraryId, ItineraryRecord.of(itinerary));
+
+    // Adding this itinerary in the created itineraries of its owner
+    updateIndexes(itineraryId);
+
+    logger.debug(true, "Itinerary '", itinerary.getName(),
+        "' Added in the List of Created Itineraries of User: ", itinerary.getCreatedBy());
+
+    return itineraryId;
+  }
+
+  /**
+   * Applies the patch of a chosen PATCH command to the stored itinerary, like an update of
+   * insertItinerary with only the changed fields. The patch is based on the version it was
+   * computed from, so it is rejected with a conflict if the itinerary changed since then.
+   *
+   * @param itineraryId - unique Key ID of the itinerary
+   * @param patch       - decoded patch
+   * @return - ID of the updated itinerary, or the conflict or error message
+   */
+  String patchItinerary(String itineraryId, ItineraryPatch patch) {
+    ItineraryRecord storedItinerary = this.keyValueStore.get(itineraryId);
+    String rejection = checkUpdate(itineraryId, storedItinerary, patch.getBaseVersion());
+
+    if (rejection != null) {
+      return rejection;
+    }
+
+    publishUpdate(itineraryId, storedItinerary, storedItinerary.withPatch(patch));
+
+    return itineraryId;
+  }
+
+  // Helper method that returns why an update of the stored itinerary is rejected, or null if it
+  // can be applied. A base version of 0 accepts any version.
+  private String checkUpdate(String itineraryId, ItineraryRecord storedItinerary,
+                             int baseVersion) {
+    // Deleted since the EDIT
+    if (storedItinerary == null) {
+      logger.debug(true, "Itinerary Key : ", itineraryId, " not found for the update.");
+      return "Error: Itinerary Not found";
+    }
+
+    // Updated by another user since the EDIT
+    if (baseVersion > 0 && baseVersion != storedItinerary.getVersion()) {
+      logger.debug(true, "Conflict on Itinerary Key : ", itineraryId, ", base version ",
+          String.valueOf(baseVersion), " but current version ",
+          String.valueOf(storedItinerary.getVersion()));
+      return "Conflict|" + itineraryId + "|" + storedItinerary.getVersion();
+    }
+
+    return null;
+  }
+
+  // Helper method that keeps the replaced version readable, then publishes the updated record
+  // in place of it
+  private void publishUpdate(String itineraryId, ItineraryRecord storedItinerary,
+                             ItineraryRecord updatedItinerary) {
+    recordHistory(itineraryId, storedItinerary);
+    this.keyValueStore.replace(itineraryId, updatedItinerary);
+    updateIndexes(itineraryId);
+
+    logger.debug(true, "Itinerary Updated to: ", updatedItinerary.getName());
+  }
+
+  // Helper method that shares the itinerary with all the users as one new record, or with none of
+  // them if it can't be shared with one of them. The users it is already shared with are skipped.
+  private String shareItinerary(String itineraryId, List<String> sharedEmailIds,
+                                String clientEmailId) {
+    boolean isBulk = sharedEmailIds.size() > 1;
 
-      if (tokens[2].length() > 40) {
+    for (String sharedEmailId : sharedEmailIds) {
+      if (sharedEmailId.length() > 40) {
         return "Invalid token input";
       }
+    }
 
-      String itineraryId = tokens[1];
-      String sharedEmailId = tokens[2];
+    ItineraryRecord itinerary = this.keyValueStore.get(itineraryId);
 
-      // If no key i.e. Itinerary ID is found, return no itinerary found
-      if (!keyValueStore.containsKey(itineraryId)) {
-        logger.debug(true, "Itinerary Key : ", tokens[1], " not found in the store.");
-        return "Itinerary Not found";
+    // If no key i.e. Itinerary ID is found, return no itinerary found
+    if (itinerary == null) {
+      logger.debug(true, "Itinerary Key : ", itineraryId, " not found in the store.");
+      return "Itinerary Not found";
+    }
+
+    for (String sharedEmailId : sharedEmailIds) {
+      // If there is no account of the shared user email, return no user found
+      if (!this.userDatabase.getUserDatabase().containsKey(sharedEmailId)) {
+        logger.debug(true, "No user found with Email: ", sharedEmailId);
+        return isBulk ? "No User Found: " + sharedEmailId : "No User Found";
       }
 
-      // Else, if the specified Key is found, then search for User with specified email
-      try {
-        // If there is no account of the shared user email, return no user found
-        if (!this.userDatabase.getUserDatabase().containsKey(sharedEmailId)) {
-          logger.debug(true, "No user found with Email: ", tokens[2]);
-          return "No User Found";
-        }
+      // If the owner wants to share the itinerary with himself, return can't do that
+      if (sharedEmailId.equals(itinerary.getCreatedBy())) {
+        logger.debug(true, "Current User and Shared User are the same. Not proceeding.");
+        return "Cannot share to own self.";
+      }
+    }
 
-        Itinerary itinerary = this.keyValueStore.get(itineraryId);
+    // If the current user is not the owner of the itinerary, he cannot share it with other users
+    if (clientEmailId == null || !clientEmailId.equals(itinerary.getCreatedBy())) {
+      logger.debug(true, "You're not the Owner of this itinerary, " +
+          "so you can't share with other users");
+      return "You're not the Owner of this itinerary, so you can't share it with other users!";
+    }
 
-        // Only the owner of the itinerary can share the itinerary with the shared user
-        User ownerUser = this.userDatabase.fetchUser(itinerary.getCreatedBy());
-        User sharedUser = this.userDatabase.fetchUser(sharedEmailId);
+    List<String> newSharedEmailIds = new ArrayList<>();
 
-        // If current user (owner) wants to share the itinerary with himself, return can't do that
-        if (ownerUser.getEmailId().equals(sharedEmailId)) {
-          logger.debug(true, "Current User and Shared User are the same. Not proceeding.");
-          return "Cannot share to own self.";
-        }
+    for (String sharedEmailId : sharedEmailIds) {
+      if (this.itineraryIndex.isCollaborator(sharedEmailId, itineraryId)
+          || newSharedEmailIds.contains(sharedEmailId)) {
+        logger.debug(true, "This Itinerary is already share with User: ", sharedEmailId);
+      } else {
+        newSharedEmailIds.add(sharedEmailId);
+      }
+    }
 
-        // Else, if user is found, send itinerary id to that user to listOfSharedIts
-        // If user is found in db, then share the key with that user
-        logger.debug(true, "User found with Email: ", tokens[2],
-            " Sharing the Itinerary with: ", sharedUser.getName());
+    if (newSharedEmailIds.isEmpty()) {
+      return "Itinerary is Already Shared";
+    }
 
-        User currentUser = this.userDatabase.fetchUser(clientEmailId);
+    // Adding the shared users to the itinerary created by owner, as one new record
+    // The shared users can then find it in the collaborator index
+    this.keyValueStore.replace(itineraryId, itinerary.withSharedUsers(newSharedEmailIds));
+    updateIndexes(itineraryId);
 
-        // If the current user is not the owner of the itinerary, he cannot share it with other users
-        if (!currentUser.getEmailId().equals(ownerUser.getEmailId())) {
-          logger.debug(true, "You're not the Owner of this itinerary, " +
-              "so you can't share with other users");
-          return "You're not the Owner of this itinerary, so you can't share it with other users!";
-        }
+    logger.debug(true, "Itinerary '", itinerary.getName(), "' successfully shared with Users: ",
+        printUsersEmail(newSharedEmailIds));
+
+    return isBulk
+        ? "Itinerary Successfully Shared with " + newSharedEmailIds.size() + " Users"
+        : "Itinerary Successfully Shared";
+  }
 
-        logger.debug(true, "Current User: ", currentUser.getName(),
-            " Shared User: ", sharedUser.getName());
+  // Helper method that deletes all the itineraries, or none of them if one of them is not found
+  // or can't be deleted by the user
+  private String deleteItineraries(List<String> itineraryIds, String clientEmailId) {
+    Set<String> deletedItineraryIds = new LinkedHashSet<>(itineraryIds);
 
+    for (String itineraryId : deletedItineraryIds) {
+      if (!this.keyValueStore.containsKey(itineraryId)) {
+        logger.debug(true, "Key : ", itineraryId, " not found in the store. " +
+            "Not deleting anything.");
+        return "No Itinerary Found: " + itineraryId;
+      } else if (!hasAccess(itineraryId, clientEmailId)) {
+        logger.error(true, "No access to delete Itinerary: ", itineraryId,
+            ". Not deleting anything.");
+        return "You are not the owner or you don't have access to Delete this itinerary: "
+            + itineraryId;
+      }
+    }
 
-        // Updates Shared Users list of itineraries
-        if (itinerary.getListOfSharedWithUsers().contains(sharedUser.getEmailId())) {
-          logger.debug(true, "This Itinerary is already share with User: ",
-              sharedUser.getName(), " Email: ", sharedUser.getEmailId());
+    // Removing them from the indexes too, so that LIST doesn't show them anymore
+    for (String itineraryId : deletedItineraryIds) {
+      this.keyValueStore.remove(itineraryId);
+      this.itineraryHistories.remove(itineraryId);
+      updateIndexes(itineraryId);
+    }
 
-          return "Itinerary is Already Shared";
-        } else {
+    logger.debug(true, String.valueOf(deletedItineraryIds.size()),
+        " Itineraries are Deleted successfully by User: ", clientEmailId);
 
-          // Adding the shared user to the itinerary created by owner
-          itinerary.setListOfSharedWithUsers(sharedUser.getEmailId());
+    return deletedItineraryIds.size() + " Itineraries Deleted Successfully!";
+  }
 
-          // Setting list of shared user for the owner user, and shared itinerary for the shared users
-          ownerUser.addSharedUserToMap(tokens[1], sharedUser.getEmailId());
+  // Helper method for Authorization: whether the Itinerary is created by the user OR
+  // whether the user is a collaborator of the itinerary, from the ACL of the itinerary
+  private boolean hasAccess(String itineraryId, String clientEmailId) {
+    return this.itineraryIndex.canAccess(clientEmailId, itineraryId);
+  }
 
-          // Adding the current itinerary as the Shared itinerary of the shared user
-          // So that the shared user can know to which itinerary he has access to
-          sharedUser.setListOfSharedItinerary(tokens[1]);
+  // Helper method to print the given version (vN or N) of the itinerary, from the current
+  // record or the history
+  private String printVersion(String itineraryId, ItineraryRecord itinerary, String versionToken) {
+    int version;
 
-          logger.debug(true, "Itinerary '", itinerary.getName(),
-              "' successfully shared with User: ", sharedUser.getName());
+    try {
+      version = Integer.parseInt(versionToken.toLowerCase().startsWith("v")
+          ? versionToken.substring(1) : versionToken);
+    } catch (NumberFormatException numberFormatException) {
+      return "Invalid version: " + versionToken;
+    }
 
-          return "Itinerary Successfully Shared";
-        }
+    if (version == itinerary.getVersion()) {
+      return itinerary.toString();
+    }
+
+    ItineraryHistory history = visibleHistory(itineraryId);
+    ItineraryRecord record = history == null ? null : history.getVersion(version);
 
-      } catch (Exception e) {
-        logger.error(true, "Exception occurred! Can't share with the specified User!");
-        e.printStackTrace();
-        return "Can't share with specified User";
+    if (record == null) {
+      logger.debug(true, "Version ", String.valueOf(version), " of Itinerary Key : ",
+          itineraryId, " not found in the history.");
+      return "Itinerary Version Not found";
+    }
+
+    return record.toString();
+  }
+
+  // Helper method to print the versions of the itinerary kept in the history, and the current one
+  private String printHistory(String itineraryId, ItineraryRecord itinerary) {
+    StringBuilder sb = new StringBuilder();
+    ItineraryHistory history = visibleHistory(itineraryId);
+
+    if (history != null) {
+      List<ItineraryRecord> versions = history.getVersions();
+
+      for (int i = 0; i < versions.size(); i++) {
+        sb.append("\nVersion: ");
+        sb.append(versions.get(i).getVersion());
+        sb.append(" Itinerary Name: ");
+        sb.append(versions.get(i).getName());
+        sb.append(" Replaced at: ");
+        sb.append(new Date(history.getSupersededTime(i)));
+        sb.append("   \n");
       }
+    }
 
-    } else if (tokens[0].equalsIgnoreCase("DELETE")) {
+    sb.append("\nVersion: ");
+    sb.append(itinerary.getVersion());
+    sb.append(" Itinerary Name: ");
+    sb.append(itinerary.getName());
+    sb.append(" (Current)   \n");
 
-      // If No itinerary found, return key not found
-      if (!this.keyValueStore.containsKey(tokens[1])) {
-        logger.debug(true, "Key : ", tokens[1], " not found in the store. " +
-            "Not deleting anything.");
+    return sb.toString();
+  }
 
-        logger.debug(true, "No Itinerary found to delete. Not deleting anything");
-        return "No Itinerary Found";
+  // Helper method that keeps the replaced version of the itinerary in its history
+  private void recordHistory(String itineraryId, ItineraryRecord replacedItinerary) {
+    if (HISTORY_MAXIMUM_VERSIONS <= 0) {
+      return;
+    }
+
+    long supersededTime = this.appliedTime;
+    this.itineraryHistories.compute(itineraryId, (id, history) ->
+        (history == null ? ItineraryHistory.empty() : history)
+            .with(replacedItinerary, supersededTime, HISTORY_MAXIMUM_VERSIONS));
+  }
+
+  /**
+   * Advances the time of the applied commands to the time the next command was proposed at,
+   * before it is applied. The time never goes back, even if the clocks of the proposers differ.
+   *
+   * @param proposedTime - time at which the command was created by its proposer
+   */
+  void advanceAppliedTime(long proposedTime) {
+    if (proposedTime > this.appliedTime) {
+      this.appliedTime = proposedTime;
+    }
+  }
+
+  // Helper method that returns the time before which the replaced versions are pruned, or
+  // Long.MIN_VALUE if they are kept
+  private long historyCutoffTime() {
+    return HISTORY_RETENTION_SECONDS <= 0 || this.appliedTime == 0
+        ? Long.MIN_VALUE
+        : this.appliedTime - TimeUnit.SECONDS.toMillis(HISTORY_RETENTION_SECONDS);
+  }
+
+  // Helper method that returns the history of the itinerary as of the last applied command,
+  // without the versions that are due to be pruned, or null if there is none
+  private ItineraryHistory visibleHistory(String itineraryId) {
+    ItineraryHistory history = this.itineraryHistories.get(itineraryId);
+    return history == null ? null : history.prunedBefore(historyCutoffTime());
+  }
+
+  /**
+   * Returns the metrics of the GET response cache in one line, for logging.
+   *
+   * @return - size, hits, misses, hit rate and evictions of the cache
+   */
+  String getResponseCacheMetrics() {
+    return this.responseCache.getMetrics();
+  }
+
+  /**
+   * Prunes the versions of the itineraries that were replaced more than
+   * itinerary.history.retentionSeconds before the last applied command. Runs in the background,
+   * concurrently with the reads and the writes. The reads already skip those versions, so when
+   * it runs doesn't change what they return.
+   */
+  void pruneHistory() {
+    long cutoffTime = historyCutoffTime();
+
+    if (cutoffTime == Long.MIN_VALUE) {
+      return;
+    }
+
+    int prunedVersions = 0;
+
+    for (String itineraryId : this.itineraryHistories.keySet()) {
+      ItineraryHistory history = this.itineraryHistories.get(itineraryId);
+
+      if (history == null) {
+        continue;
       }
 
-      // Authorization - Only Owner of an itinerary can delete the itinerary
+      ItineraryHistory prunedHistory = history.prunedBefore(cutoffTime);
 
-      Itinerary itinerary = this.keyValueStore.get(tokens[1]);
-      User ownerUser = this.userDatabase.fetchUser(itinerary.getCreatedBy());
-      User currentUser = this.userDatabase.fetchUser(clientEmailId);
+      if (prunedHistory == history) {
+        continue;
+      }
 
-      // If Current user is the owner Or Current user has access to the shared Itinerary
-      if (currentUser.getEmailId().equals(ownerUser.getEmailId())
-          || itinerary.getListOfSharedWithUsers().contains(currentUser.getEmailId())
-          || currentUser.getListOfSharedItinerary().contains(tokens[1])
-          || currentUser.getListOfCreatedItinerary().contains(tokens[1])) {
+      // Only replaced if no write added a version meanwhile, otherwise it's pruned next time
+      boolean replaced = prunedHistory == null
+          ? this.itineraryHistories.remove(itineraryId, history)
+          : this.itineraryHistories.replace(itineraryId, history, prunedHistory);
 
-        this.keyValueStore.remove(tokens[1]);
-        logger.debug(true, "Itinerary: ", itinerary.getName(),
-            " is Deleted successfully by User: ", currentUser.getName());
-        return "Itinerary Deleted Successfully!";
+      if (replaced) {
+        prunedVersions += history.getVersions().size()
+            - (prunedHistory == null ? 0 : prunedHistory.getVersions().size());
       }
+    }
 
-      logger.error(true,
-          "You are not the owner or you don't have access to delete this itinerary!");
-      return "You are not the owner or you don't have access to Delete this itinerary!";
+    if (prunedVersions > 0) {
+      logger.debug(false, "Pruned ", String.valueOf(prunedVersions),
+          " itinerary versions older than ", String.valueOf(HISTORY_RETENTION_SECONDS), " s");
+    }
+  }
 
-    } else {
-      // LIST
-      if (clientEmailId == null) {
-        logger.debug(true, "User is null, User not found");
-        return "User Not found";
+  /**
+   * Returns one page of the itineraries created by or shared with the user, ordered by their ID.
+   * It reads the page from the sorted owner or collaborator index, starting after the cursor, so
+   * its cost only depends on the page size.
+   *
+   * @param listType      - CREATED or COLLAB
+   * @param cursor        - ID of the last itinerary of the previous page, null for the first page
+   * @param limit         - maximum number of itineraries, at most LIST_MAXIMUM_PAGE_SIZE
+   * @param clientEmailId - The user whose itineraries are listed
+   * @return - page of itineraries
+   */
+  ItineraryPage listItineraries(String listType, String cursor, int limit,
+                                String clientEmailId) {
+    NavigableSet<String> itineraryIds = "COLLAB".equalsIgnoreCase(listType)
+        ? this.itineraryIndex.getSortedSharedItineraries(clientEmailId)
+        : this.itineraryIndex.getSortedCreatedItineraries(clientEmailId);
+    Iterator<String> iterator =
+        (cursor == null ? itineraryIds : itineraryIds.tailSet(cursor, false)).iterator();
+
+    int pageSize = Math.max(1, Math.min(limit, LIST_MAXIMUM_PAGE_SIZE));
+    LinkedHashMap<String, ItineraryRecord> itineraries = new LinkedHashMap<>();
+    String lastItineraryId = null;
+
+    while (itineraries.size() < pageSize && iterator.hasNext()) {
+      lastItineraryId = iterator.next();
+      ItineraryRecord itinerary = this.keyValueStore.get(lastItineraryId);
+
+      // Deleted after the index was read
+      if (itinerary != null) {
+        itineraries.put(lastItineraryId, itinerary);
       }
+    }
 
-      User currentClientUser = this.userDatabase.getUserDatabase().get(clientEmailId);
+    return new ItineraryPage(itineraries, iterator.hasNext() ? lastItineraryId : null);
+  }
 
-      if (tokens[1].equalsIgnoreCase("CREATED")) {
-        // Itineraries created by user
-        return printListOfCreatedOrSharedItineraries(currentClientUser.getListOfCreatedItinerary());
-      } else {
-        // COLLAB
-        return printListOfCreatedOrSharedItineraries(currentClientUser.getListOfSharedItinerary());
+  // Helper method to print a page of the list of created or shared itineraries of the user,
+  // followed by the request of the next page
+  private String printListOfCreatedOrSharedItineraries(String listType, ItineraryPage page) {
+    StringBuilder sb = new StringBuilder();
+
+    for (Map.Entry<String, ItineraryRecord> entry : page.getItineraries().entrySet()) {
+      sb.append("\nItinerary Id: ");
+      sb.append(entry.getKey());
+      sb.append(" Itinerary Name: ");
+      sb.append(entry.getValue().getName());
+      sb.append("   \n");
+    }
+
+    if (page.hasNextPage()) {
+      sb.append("\nNext page: LIST ");
+      sb.append(listType);
+      sb.append(" ");
+      sb.append(page.getNextCursor());
+      sb.append(" ");
+      sb.append(page.getItineraries().size());
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  // Helper method that lists the itineraries the user can access which have a word starting with
+  // every entered word (SEARCH|word|word)
+  private String printSearchedItineraries(String[] tokens, String clientEmailId) {
+    List<String> prefixes = new ArrayList<>();
+
+    for (int i = 1; i < tokens.length; i++) {
+      prefixes.addAll(SearchIndex.tokenize(tokens[i]));
+    }
+
+    if (prefixes.isEmpty()) {
+      return "Invalid search! Enter at least one word";
+    }
+
+    // The candidates are filtered by the itineraries the user can access
+    List<String> itineraryIds = this.searchIndex.search(prefixes,
+        this.itineraryIndex.getCreatedItineraries(clientEmailId),
+        this.itineraryIndex.getSharedItineraries(clientEmailId));
+    StringBuilder sb = new StringBuilder();
+    int foundItineraries = 0;
+
+    for (String itineraryKeyId : itineraryIds) {
+      ItineraryRecord itinerary = this.keyValueStore.get(itineraryKeyId);
+
+      // Deleted after the index was read
+      if (itinerary == null) {
+        continue;
       }
+
+      sb.append("\nItinerary Id: ");
+      sb.append(itineraryKeyId);
+      sb.append(" Itinerary Name: ");
+      sb.append(itinerary.getName());
+      sb.append(" Location: ");
+      sb.append(itinerary.getLocation());
+      sb.append("   \n");
+      foundItineraries++;
     }
 
-    //return "INVALID OPERATION - Under Development";
+    logger.debug(true, "Found ", String.valueOf(foundItineraries), " Itineraries matching ",
+        prefixes.toString(), " for User: ", clientEmailId);
+
+    return foundItineraries == 0 ? "No Itinerary matches the search" : sb.toString();
   }
 
-  // Helper method to print list of created itineraries by the user
-  private String printListOfCreatedOrSharedItineraries(List<String> listOfCreatedItinerary) {
+  // Helper method that lists the itineraries the user can access whose dates overlap the
+  // entered range (OVERLAP|from|to), or the dates of an itinerary (OVERLAP|id)
+  private String printOverlappingItineraries(String[] tokens, String clientEmailId) {
+    long from, to;
+    String excludedItineraryId = null;
+
+    if (tokens.length == 2) {
+      ItineraryRecord itinerary = this.keyValueStore.get(tokens[1]);
+
+      if (itinerary == null) {
+        logger.debug(true, "Itinerary Key : ", tokens[1], " not found in the store.");
+        return "Itinerary Not found";
+      } else if (!hasAccess(tokens[1], clientEmailId)) {
+        return "No Authorization Access";
+      } else if (itinerary.getStartDate() == null || itinerary.getEndDate() == null) {
+        return "Itinerary has no dates";
+      }
+
+      from = itinerary.getStartDate().getTime();
+      to = itinerary.getEndDate().getTime();
+      excludedItineraryId = tokens[1];
+    } else {
+      SimpleDateFormat sdf = new SimpleDateFormat(OVERLAP_DATE_FORMAT);
+      sdf.setLenient(false);
+
+      try {
+        from = sdf.parse(tokens[1]).getTime();
+        to = sdf.parse(tokens[2]).getTime();
+      } catch (ParseException parseException) {
+        logger.debug(true, "Invalid OVERLAP dates: ", tokens[1], " ", tokens[2]);
+        return "Invalid dates! Enter them as " + OVERLAP_DATE_FORMAT;
+      }
+
+      if (to < from) {
+        return "Invalid dates! The end date is before the start date";
+      }
+    }
+
+    // Only the itineraries the user can access are in their tree, no other check is needed
+    List<String> itineraryIds =
+        this.itineraryIndex.getOverlappingItineraries(clientEmailId, from, to);
     StringBuilder sb = new StringBuilder();
+    int overlappingItineraries = 0;
+
+    for (String itineraryKeyId : itineraryIds) {
+      ItineraryRecord itinerary = this.keyValueStore.get(itineraryKeyId);
+
+      // The itinerary itself, or deleted after the index was read
+      if (itineraryKeyId.equals(excludedItineraryId) || itinerary == null) {
+        continue;
+      }
 
-    for (String itineraryKeyId : listOfCreatedItinerary) {
-      Itinerary itinerary = this.keyValueStore.get(itineraryKeyId);
       sb.append("\nItinerary Id: ");
       sb.append(itineraryKeyId);
       sb.append(" Itinerary Name: ");
       sb.append(itinerary.getName());
+      sb.append(" From: ");
+      sb.append(itinerary.getStartDate());
+      sb.append(" To: ");
+      sb.append(itinerary.getEndDate());
       sb.append("   \n");
+      overlappingItineraries++;
     }
 
-    return sb.toString();
+    logger.debug(true, "Found ", String.valueOf(overlappingItineraries),
+        " overlapping Itineraries for User: ", clientEmailId);
+
+    return overlappingItineraries == 0 ? "No Itinerary overlaps these dates" : sb.toString();
+  }
+
+  /**
+   * Copies the itineraries and the users into the snapshot. Called while no command is being
+   * applied, the reads are not blocked. The records are immutable, so only the map is copied.
+   *
+   * @param snapshot - snapshot of the replica
+   */
+  void captureSnapshot(ReplicaSnapshot snapshot) {
+    snapshot.setItineraries(new HashMap<>(this.keyValueStore));
+    snapshot.setItineraryHistories(new HashMap<>(this.itineraryHistories));
+    snapshot.setUsers(this.userDatabase.copyUsers());
+    snapshot.setAppliedTime(this.appliedTime);
+  }
+
+  /**
+   * Replaces the itineraries and the users with the ones of the snapshot, when the replica
+   * restarts or installs the snapshot of another replica. Called while no command is being
+   * applied, the readers see either the old or the new record of an itinerary.
+   *
+   * @param snapshot - snapshot of the replica
+   */
+  void restoreSnapshot(ReplicaSnapshot snapshot) {
+    this.userDatabase.restoreUsers(snapshot.getUsers());
+    this.keyValueStore.keySet().retainAll(snapshot.getItineraries().keySet());
+    this.keyValueStore.putAll(snapshot.getItineraries());
+    this.itineraryHistories.clear();
+    this.itineraryHistories.putAll(snapshot.getItineraryHistories());
+    this.appliedTime = snapshot.getAppliedTime();
+
+    this.merkleTree.clear();
+    this.itineraryIndex.clear();
+    this.searchIndex.clear();
+    this.responseCache.clear();
+
+    for (String itineraryId : this.keyValueStore.keySet()) {
+      updateIndexes(itineraryId);
+    }
+  }
+
+  /**
+   * Returns the current record of an itinerary, without checking access.
+   *
+   * @param itineraryId - unique Key ID of the itinerary
+   * @return - record, or null if there is no itinerary with this ID
+   */
+  ItineraryRecord getItinerary(String itineraryId) {
+    return this.keyValueStore.get(itineraryId);
+  }
+
+  /**
+   * Returns the Merkle tree over the itineraries, for the anti-entropy exchange.
+   *
+   * @return - Merkle tree
+   */
+  MerkleTree getMerkleTree() {
+    return merkleTree;
+  }
+
+  /**
+   * Returns the itineraries of the given buckets of the Merkle tree, so that another replica can
+   * repair the buckets where it differs from this one.
+   *
+   * @param buckets - buckets of the Merkle tree
+   * @return - records of the itineraries, Key: Itinerary ID
+   */
+  Map<String, ItineraryRecord> getBucketItineraries(int[] buckets) {
+    Map<String, ItineraryRecord> itineraries = new HashMap<>();
+
+    for (int bucket : buckets) {
+      for (String itineraryId : merkleTree.getKeys(bucket)) {
+        ItineraryRecord itinerary = this.keyValueStore.get(itineraryId);
+
+        if (itinerary != null) {
+          itineraries.put(itineraryId, itinerary);
+        }
+      }
+    }
+
+    return itineraries;
+  }
+
+  /**
+   * Replaces the itineraries of the given buckets with the ones of another replica. Itineraries
+   * of these buckets which the other replica does not have are removed. Called while no command
+   * is being applied, the readers see either the old or the new record of an itinerary.
+   *
+   * @param buckets - buckets of the Merkle tree that differ
+   * @param itineraries - itineraries of these buckets on the other replica
+   * @return - number of itineraries added, replaced or removed
+   */
+  int repairBuckets(int[] buckets, Map<String, ItineraryRecord> itineraries) {
+    int repaired = 0;
+
+    for (int bucket : buckets) {
+      for (String itineraryId : merkleTree.getKeys(bucket)) {
+        if (!itineraries.containsKey(itineraryId)) {
+          this.keyValueStore.remove(itineraryId);
+          this.itineraryHistories.remove(itineraryId);
+          updateIndexes(itineraryId);
+          repaired++;
+        }
+      }
+    }
+
+    for (Map.Entry<String, ItineraryRecord> entry : itineraries.entrySet()) {
+      ItineraryRecord itinerary = this.keyValueStore.get(entry.getKey());
+
+      if (itinerary != null && MerkleTree.hashEntry(entry.getKey(), itinerary.getVersion(),
+          itinerary.getListOfSharedWithUsers()) == MerkleTree.hashEntry(entry.getKey(),
+          entry.getValue().getVersion(), entry.getValue().getListOfSharedWithUsers())) {
+        continue;
+      }
+
+      this.keyValueStore.put(entry.getKey(), entry.getValue());
+      updateIndexes(entry.getKey());
+      repaired++;
+    }
+
+    return repaired;
+  }
+
+  // Helper method that updates the hash of the itinerary in the Merkle tree, and its entries in
+  // the owner, collaborator and search indexes and the response cache, after it was put,
+  // replaced or removed
+  private void updateIndexes(String itineraryId) {
+    ItineraryRecord itinerary = this.keyValueStore.get(itineraryId);
+    this.itineraryIndex.update(itineraryId, itinerary);
+    this.searchIndex.update(itineraryId, itinerary);
+    this.responseCache.invalidate(itineraryId);
+
+    if (itinerary == null) {
+      this.merkleTree.remove(itineraryId);
+    } else {
+      this.merkleTree.put(itineraryId, MerkleTree.hashEntry(itineraryId, itinerary.getVersion(),
+          itinerary.getListOfSharedWithUsers()));
+    }
   }
 
   /**
@@ -1,32 +1,53 @@
 package server.keyvaluestore;
 
 import static server.keyvaluestore.UniqueIdGenerator.generateId;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import logs.Logger;
+import server.AppliedValue;
+import server.Command;
 import server.PaxosServer;
 import server.Promise;
+import server.QuorumCall;
+import server.ReplicaExecutor;
 import server.Server;
+import server.WriteAheadLog;
 import server.itinerary.Itinerary;
+import server.itinerary.ItineraryCodec;
+import server.itinerary.ItineraryPage;
+import server.itinerary.ItineraryPatch;
+import server.itinerary.ItineraryRecord;
 import server.user.User;
 import server.user.UserDB;
 
@@ -34,19 +55,194 @@ public class KeyValueStoreServer implements Server, PaxosServer {
 
   private final KeyValueStore keyValueStore;
   private final Map<String, PaxosServer> acceptors;
-  private final Map<String, Promise> metadata;
   private static final int MAXIMUM_PAXOS_RETRIES = 10;
+
+  // Randomized exponential backoff between the PAXOS retries, so duelling proposers drift apart
+  private static final long MINIMUM_BACKOFF_MILLIS = 5;
+  private static final long MAXIMUM_BACKOFF_MILLIS = 1000;
+
+  // Sequence numbers are (round, server index) pairs packed in a long, with the server index in
+  // the lowest bits, so two servers never propose the same sequence number
+  private static final int SERVER_INDEX_BITS = 8;
+
+  // Multi-PAXOS (stable leader) is the default, start the server with -Dpaxos.mode=classic
+  // to run both phases of PAXOS for every write
+  private static final boolean MULTI_PAXOS_ENABLED =
+      !"classic".equalsIgnoreCase(System.getProperty("paxos.mode", "multi"));
+
+  // Concurrent writes are batched into one PAXOS instance: at most paxos.batch.size commands,
+  // waiting at most paxos.batch.delayMicros for more commands while other batches are in flight
+  private static final int MAXIMUM_BATCH_SIZE = Integer.getInteger("paxos.batch.size", 64);
+  private static final long MAXIMUM_BATCH_DELAY_MICROS =
+      Long.getLong("paxos.batch.delayMicros", 500);
+  private static final int MAXIMUM_BATCHES_IN_FLIGHT =
+      Integer.getInteger("paxos.batch.inFlight", 4);
+
+  // Directory of the write-ahead logs and the snapshots, a new log segment is started after
+  // paxos.wal.segmentBytes, and a snapshot is taken every paxos.snapshot.intervalSeconds
+  private static final String WRITE_AHEAD_LOG_DIRECTORY =
+      System.getProperty("paxos.wal.dir", "src/logs/wal");
+  private static final long WRITE_AHEAD_LOG_SEGMENT_BYTES =
+      Long.getLong("paxos.wal.segmentBytes", 16 * 1024 * 1024);
+  private static final long SNAPSHOT_INTERVAL_SECONDS =
+      Long.getLong("paxos.snapshot.intervalSeconds", 60);
+
+  // Every paxos.catchup.intervalMillis a replica checks whether it is behind the others. When it
+  // is more than paxos.catchup.maxSlots behind, it installs a snapshot instead of the commands.
+  private static final long CATCH_UP_INTERVAL_MILLIS =
+      Long.getLong("paxos.catchup.intervalMillis", 1000);
+  private static final long CATCH_UP_MAXIMUM_SLOTS = Long.getLong("paxos.catchup.maxSlots", 1000);
+
+  // After a snapshot, the chosen commands, applied command IDs and accepted proposals more than
+  // paxos.log.retainedSlots slots before it are dropped. A replica behind that window installs
+  // a snapshot, and a command retried after that many slots could be applied twice.
+  private static final long LOG_RETAINED_SLOTS =
+      Math.max(CATCH_UP_MAXIMUM_SLOTS, Long.getLong("paxos.log.retainedSlots", 10000));
+  private static final int CATCH_UP_BATCH_SIZE = 500;
+
+  // Learn messages can arrive out of order, so a gap is only filled if it is still there later
+  private static final long CATCH_UP_GAP_DELAY_MILLIS = 200;
+
+  // How often the versions of the itineraries older than their retention are pruned
+  private static final long HISTORY_PRUNE_INTERVAL_SECONDS = 60;
+
+  // How often the metrics of the GET response cache are logged (0 = never)
+  private static final long RESPONSE_CACHE_METRICS_SECONDS =
+      Long.getLong("itinerary.cache.metricsSeconds", 60);
+
+  // Every paxos.antientropy.intervalSeconds a replica compares the Merkle tree of its
+  // itineraries with the one of the leader, and repairs the buckets where they differ
+  private static final long ANTI_ENTROPY_INTERVAL_SECONDS =
+      Long.getLong("paxos.antientropy.intervalSeconds", 30);
+
+  // A read is forwarded to the most up-to-date replica only if this one has applied more than
+  // paxos.read.maxLagSlots fewer slots, a smaller lag is served locally
+  private static final long READ_MAXIMUM_LAG_SLOTS = Long.getLong("paxos.read.maxLagSlots", 100);
+
+  // How long a replica waits to apply the slots the leader had applied when it sent its tree
+  private static final long ANTI_ENTROPY_CURSOR_WAIT_MILLIS = 5000;
+
   private final String serverId;
   private final Logger logger;
+
+  // Index of this server, the lowest bits of its sequence numbers
+  private final int serverIndex;
+
+  // Highest round seen in any sequence number, new sequence numbers use a higher round
+  private final AtomicLong highestRoundSeen;
+
+  // Slot indexed log of the chosen commands, applied in order to the KeyValueStore
+  private final ReplicatedLog replicatedLog;
+
+  // Collects concurrent writes on this proposer into batches
+  private final CommandBatcher commandBatcher;
+
+  // Server-wide executor for the calls to the other replicas
+  private final ExecutorService executorService;
+
+  // Server ID of the distinguished proposer (leader) for Multi-PAXOS
+  private String leaderId;
+
+  // Sequence number promised to this server by the majority while it is the leader, -1 otherwise
+  private volatile long leaderBallot;
+
+  // Next free slot of the log that the leader hands out to a new write
+  private final AtomicLong nextSlot;
+
+  // Guards the leadership round, kept apart from the acceptor's monitor (this) since the leader
+  // is one of its own acceptors
+  private final Object leaderLock;
+
+  // In classic mode, a replica runs one PAXOS instance at a time so it does not duel with itself
+  private final Object proposerLock;
+
+  // Acceptor side: highest sequence number promised, which covers all the slots
+  private long promisedSequenceNumber;
+
+  // Acceptor side: the accepted proposals before this slot were compacted away, a proposer
+  // preparing from an earlier slot is rejected until it has caught up
+  private volatile long compactedBeforeSlot;
+
+  // Acceptor side: accepted proposals, Key: Slot number, Value: accepted sequence number & command
+  private final ConcurrentSkipListMap<Long, Promise> acceptedProposals;
+
+  // Promises, accepted proposals and chosen commands, forced to disk before they are
+  // acknowledged and replayed on restart
+  private final WriteAheadLog writeAheadLog;
+
+  // Snapshot of the itineraries, the users and the acceptor, the log segments older than it
+  // are deleted. Learning a command holds the read lock, taking the snapshot the write lock, so
+  // no chosen command is between the snapshot and the log segments after it.
+  private final Path snapshotPath;
+  private final ReadWriteLock snapshotLock;
+  private volatile long snapshotApplyCursor;
+
+  // Snapshots, catch-up, anti-entropy, history pruning and the cache metrics run one at a time
+  // on this thread
+  private final ScheduledExecutorService backgroundTasks;
+
+  // Most up-to-date other replica and its apply cursor, as of the last catch-up check. While
+  // this replica is too far behind it, the reads are forwarded to it.
+  private volatile String upToDateReplicaId;
+  private volatile long upToDateApplyCursor;
+
+  // Read-your-writes: after a write of a client is forwarded to the leader, the apply cursor of
+  // the leader once it applied the write, until this replica has applied that far. The reads of
+  // the client are forwarded to the leader meanwhile. Key: client email ID
+  private final ConcurrentHashMap<String, AppliedValue<String>> clientWriteCursors;
+  private final AtomicBoolean catchUpScheduled;
   // We can use the userDbServer to access User Database
 
   public KeyValueStoreServer(String serverId, Server userDbServer) {
     this.keyValueStore = new KeyValueStore("src/logs/server_" + serverId
         + ".log", serverId, userDbServer);
     this.acceptors = new HashMap<>();
-    this.metadata = new HashMap<>();
     this.serverId = serverId;
     this.logger = new Logger("src/logs/server_" + serverId + ".log", serverId);
+    this.serverIndex = parseServerIndex(serverId);
+    this.highestRoundSeen = new AtomicLong(0);
+    this.replicatedLog = new ReplicatedLog(this::applyCommand, logger);
+    this.leaderBallot = -1;
+    this.nextSlot = new AtomicLong(0);
+    this.leaderLock = new Object();
+    this.proposerLock = new Object();
+    this.promisedSequenceNumber = Integer.MIN_VALUE;
+    this.acceptedProposals = new ConcurrentSkipListMap<>();
+    this.snapshotPath = Paths.get(WRITE_AHEAD_LOG_DIRECTORY, serverId + ".snapshot");
+    this.snapshotLock = new ReentrantReadWriteLock();
+    this.snapshotApplyCursor = 0;
+    this.writeAheadLog = new WriteAheadLog(WRITE_AHEAD_LOG_DIRECTORY, serverId,
+        WRITE_AHEAD_LOG_SEGMENT_BYTES, logger);
+    recoverFromSnapshot();
+    recoverFromWriteAheadLog();
+
+    this.upToDateReplicaId = null;
+    this.upToDateApplyCursor = -1;
+    this.clientWriteCursors = new ConcurrentHashMap<>();
+    this.catchUpScheduled = new AtomicBoolean(false);
+    this.backgroundTasks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Background-" + serverId);
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    if (SNAPSHOT_INTERVAL_SECONDS > 0) {
+      backgroundTasks.scheduleWithFixedDelay(this::takeSnapshot, SNAPSHOT_INTERVAL_SECONDS,
+          SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    backgroundTasks.scheduleWithFixedDelay(keyValueStore::pruneHistory,
+        HISTORY_PRUNE_INTERVAL_SECONDS, HISTORY_PRUNE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+    if (RESPONSE_CACHE_METRICS_SECONDS > 0) {
+      backgroundTasks.scheduleWithFixedDelay(
+          () -> logger.debug(false, keyValueStore.getResponseCacheMetrics()),
+          RESPONSE_CACHE_METRICS_SECONDS, RESPONSE_CACHE_METRICS_SECONDS, TimeUnit.SECONDS);
+    }
+
+    this.executorService = ReplicaExecutor.getPaxosInstance();
+    this.commandBatcher = new CommandBatcher(serverId, this::proposeCommand, MAXIMUM_BATCH_SIZE,
+        MAXIMUM_BATCH_DELAY_MICROS, MAXIMUM_BATCHES_IN_FLIGHT, logger);
   }
 
   @Override
@@ -80,179 +276,461 @@ public class KeyValueStoreServer implements Server, PaxosServer {
         acceptors.put(key, this);
       }
     }
+
+    // The lowest numbered server that is reachable acts as the leader
+    for (int i = 0; i < numberOfServers; i++) {
+      if (acceptors.containsKey("KVS" + i)) {
+        leaderId = "KVS" + i;
+        break;
+      }
+    }
+
+    if (MULTI_PAXOS_ENABLED) {
+      logger.debug(true, "Multi-PAXOS enabled with leader: ", leaderId);
+    }
+
+    // A restarted replica catches up with the others before serving any read, and then keeps
+    // checking in the background
+    try {
+      backgroundTasks.submit(this::catchUp).get();
+    } catch (InterruptedException | ExecutionException exception) {
+      logger.error(true, "Error while catching up with the other replicas!");
+    }
+
+    if (CATCH_UP_INTERVAL_MILLIS > 0) {
+      backgroundTasks.scheduleWithFixedDelay(this::catchUp, CATCH_UP_INTERVAL_MILLIS,
+          CATCH_UP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    if (ANTI_ENTROPY_INTERVAL_SECONDS > 0) {
+      backgroundTasks.scheduleWithFixedDelay(this::runAntiEntropy, ANTI_ENTROPY_INTERVAL_SECONDS,
+          ANTI_ENTROPY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
   }
 
   @Override
   public String startPaxos(String[] inputTokens, String operation, String clientEmailId)
       throws IOException, ClassNotFoundException {
 
-    // PUT,  1223123, ItByteSized     Serialized Byte Array only for PUT and EDIT
-
-    String key = inputTokens[1], value = null;
+    // DELETE, 1223123     SHARE, 1223123, a@a.com     MDELETE, 1223123, 1223124
+    // The operands after the key are kept in the value, pipe separated, so that a batch is
+    // agreed upon in one instance and applied as one command
+    String value = inputTokens.length >= 3
+        ? String.join("|", Arrays.asList(inputTokens).subList(2, inputTokens.length))
+        : null;
+    return submitCommand(new Command(operation, inputTokens[1], value, clientEmailId));
+  }
 
-    if (inputTokens.length == 3) {
-      value = inputTokens[2];
+  @Override
+  public String submitCommand(Command command) throws IOException, ClassNotFoundException {
+    if (MULTI_PAXOS_ENABLED && leaderId != null && !serverId.equals(leaderId)) {
+      // Only the stable leader proposes in Multi-PAXOS mode, so forward the write to it
+      try {
+        logger.debug(true, "Forwarding ", command.getOperation(), " request to the leader: ",
+            leaderId);
+        String replicaId = leaderId;
+        PaxosServer leader = acceptors.get(replicaId);
+        String result = leader.submitCommand(command);
+        recordClientWrite(command.getClientEmailId(), replicaId, leader);
+        return result;
+      } catch (RemoteException remoteException) {
+        logger.error(true, "Leader ", leaderId, " is not reachable! Falling back to "
+            + "classic PAXOS for this request.");
+      }
     }
 
-    String tempValue = null;
+    // The result has to be registered before proposing, the command may be applied right away
+    CompletableFuture<String> result = replicatedLog.register(command.getCommandId());
+
     try {
-      tempValue = parseByteArray(value);
-    } catch (Exception e) {
-      tempValue = value;
+      boolean chosen = commandBatcher.submit(command).get();
+
+      if (!chosen) {
+        logger.error(true, "Error! Consensus could Not be reached even after " +
+            "Maximum number of tries!");
+        return "Failed";
+      }
+
+      return result.get(30, TimeUnit.SECONDS);
+    } catch (ExecutionException executionException) {
+      Throwable cause = executionException.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof ClassNotFoundException) {
+        throw (ClassNotFoundException) cause;
+      }
+
+      logger.error(true, "Error while applying ", command.toString());
+      return "Failed";
+    } catch (InterruptedException | TimeoutException exception) {
+      logger.error(true, "Timed out while waiting for ", command.toString(), " to be applied!");
+      return "Failed";
+    } finally {
+      replicatedLog.unregister(command.getCommandId());
     }
+  }
 
-    int minMajority = acceptors.size() / 2 + 1;
-    ExecutorService executorService = Executors.newCachedThreadPool();
+  // Helper method used by the batcher to run PAXOS for a command or a batch of commands
+  private boolean proposeCommand(Command command) {
+    return MULTI_PAXOS_ENABLED && serverId.equals(leaderId)
+        ? startMultiPaxos(command)
+        : startClassicPaxos(command);
+  }
+
+  /**
+   * Multi-PAXOS, only executed by the leader. Phase 1 is run once for all the future slots
+   * (prepareLeadership) and every write afterwards gets the next free slot and goes straight to
+   * Phase 2, as long as no acceptor has promised a higher sequence number in the meantime.
+   * Concurrent writes are proposed in different slots in parallel.
+   *
+   * @return - true if the command is chosen in one of the slots
+   */
+  private boolean startMultiPaxos(Command command) {
 
     for (int i = 0; i < MAXIMUM_PAXOS_RETRIES; i++) {
+      long ballot = leaderBallot;
+
+      if (ballot < 0) {
+        ballot = prepareLeadership();
+
+        if (ballot < 0) {
+          logger.debug(true, "PAXOS Try", String.valueOf(i + 1), " failed!");
+          backOff(i);
+          continue;
+        }
+      }
 
-      // Phase 1 of PAXOS begins:
+      long slot = nextSlot.getAndIncrement();
 
-      /*
-      Proposer sends prepare(sequenceNumber) requests to all the Acceptors.
-      - It then waits for responses from all the acceptors
+      if (acceptSlot(ballot, slot, command)) {
+        return true;
+      }
 
-      - If the majority of acceptors responds with Promises, it proceeds ahead.
+      // Another proposer got a higher promise, so Phase 1 has to run again
+      logger.debug(true, "Multi-PAXOS Phase 2 failed for slot ", String.valueOf(slot),
+          ". Giving up leadership round: ", String.valueOf(ballot));
+      stepDown(ballot);
+      backOff(i);
+    }
 
-      - However, if all acceptors respond with only promises, Proposer's value is Accepted.
+    return false;
+  }
 
-      - And if some acceptors have already accepted values,
-        then the value with the highest sequence id number becomes the Proposed value.
-      */
+  /**
+   * Runs Phase 1 of Multi-PAXOS for every slot from the first unchosen one. Proposals that were
+   * already accepted in those slots are proposed again with the new sequence number, and the
+   * remaining holes are filled with no-ops before any new write gets a slot.
+   *
+   * @return - Promised sequence number, or -1 if the leadership could not be established
+   */
+  private long prepareLeadership() {
+    synchronized (leaderLock) {
+      if (leaderBallot >= 0) {
+        return leaderBallot;
+      }
 
-      logger.debug(true, "Initiating PAXOS Phase 1");
-      long sequenceNumber = generateCurrentSequenceNumber();
-      logger.debug(true, "Sequence Number: ", String.valueOf(sequenceNumber));
+      long sequenceNumber = generateSequenceNumber();
+      long fromSlot = replicatedLog.firstUnchosenSlot();
+      logger.debug(true, "Initiating Multi-PAXOS Phase 1 with Sequence Number: ",
+          String.valueOf(sequenceNumber), " from slot: ", String.valueOf(fromSlot));
 
-      List<Callable<Promise>> prepareTasks = new ArrayList<>();
+      Map<Long, Promise> acceptedValues = sendPrepares(sequenceNumber, fromSlot);
 
-      for (PaxosServer paxosServer : acceptors.values()) {
-        prepareTasks.add(() -> paxosServer.prepare(sequenceNumber, key, operation, clientEmailId));
+      if (acceptedValues == null) {
+        return -1;
       }
 
-      int promises = 0;
-      long maxSequenceNumber = 0;
+      long lastSlot = fromSlot - 1;
+      if (!acceptedValues.isEmpty()) {
+        lastSlot = Math.max(lastSlot, Collections.max(acceptedValues.keySet()));
+      }
+      lastSlot = Math.max(lastSlot, replicatedLog.highestChosenSlot());
 
-      try {
-        List<Future<Promise>> prepareResponses = executorService
-            .invokeAll(prepareTasks, 30, TimeUnit.SECONDS);
+      if (!recoverSlots(sequenceNumber, fromSlot, lastSlot, acceptedValues)) {
+        return -1;
+      }
 
-        for (Future<Promise> result : prepareResponses) {
-          Promise promise = result.get();
+      logger.debug(true, "Leadership established for ", serverId, " with Sequence Number: ",
+          String.valueOf(sequenceNumber));
+      nextSlot.set(lastSlot + 1);
+      leaderBallot = sequenceNumber;
+      return sequenceNumber;
+    }
+  }
 
-          if (promise != null) {
+  // Helper method to give up the leadership round, if no other thread has started a new one
+  private void stepDown(long ballot) {
+    synchronized (leaderLock) {
+      if (leaderBallot == ballot) {
+        leaderBallot = -1;
+      }
+    }
+  }
 
-            // If result of the prepare request is Accepted or Promised,
-            // then increment the promises
+  /**
+   * Classic PAXOS: Phase 1 and Phase 2 for every write. The command is proposed in the first
+   * slot that is unchosen on this replica, after the slots which already have accepted values
+   * are recovered.
+   *
+   * @return - true if the command is chosen in one of the slots
+   */
+  private boolean startClassicPaxos(Command command) {
 
-            if (promise.getStatus().equalsIgnoreCase("Accepted")
-                || promise.getStatus().equalsIgnoreCase("Promised")) {
-              promises++;
+    synchronized (proposerLock) {
+      for (int i = 0; i < MAXIMUM_PAXOS_RETRIES; i++) {
 
-              // If the response contains accepted value,
-              // choose the proposed value with the highest accepted sequence number
+        // Phase 1 of PAXOS begins:
 
-              if (promise.getAccepted()
-                  && promise.getAcceptedSequenceNumber() > maxSequenceNumber) {
-                maxSequenceNumber = promise.getAcceptedSequenceNumber();
-                value = promise.getAcceptedValue();
-              }
-            }
-          }
+        /*
+        Proposer sends prepare(sequenceNumber, slot) requests to all the Acceptors.
+        - It then waits for responses from all the acceptors
+
+        - If the majority of acceptors responds with Promises, it proceeds ahead.
+
+        - However, if all acceptors respond with only promises, Proposer's value is Accepted.
+
+        - And if some acceptors have already accepted values for a slot,
+          then the value with the highest sequence id number becomes the Proposed value of it,
+          and the proposer's own value moves to the next slot.
+        */
+
+        logger.debug(true, "Initiating PAXOS Phase 1");
+        long sequenceNumber = generateSequenceNumber();
+        long fromSlot = replicatedLog.firstUnchosenSlot();
+        logger.debug(true, "Sequence Number: ", String.valueOf(sequenceNumber), ", Slot: ",
+            String.valueOf(fromSlot));
+
+        Map<Long, Promise> acceptedValues = sendPrepares(sequenceNumber, fromSlot);
+
+        if (acceptedValues == null) {
+          logger.debug(true, "PAXOS Try", String.valueOf(i + 1), " failed!");
+          backOff(i);
+          continue;
+        }
+
+        long lastSlot = fromSlot - 1;
+        if (!acceptedValues.isEmpty()) {
+          lastSlot = Math.max(lastSlot, Collections.max(acceptedValues.keySet()));
         }
-      } catch (ExecutionException | InterruptedException exception) {
-        logger.error(true, "Error in PAXOS Phase 1!");
-      }
 
-      logger.debug(true, "Number of received Promises: ", String.valueOf(promises));
+        /*
+        Now we know that Majority of Acceptors have responded with Promises.
+        Proposer will now begin the Phase 2 of PAXOS.
 
-      if (minMajority > promises) {
-        logger.debug(true, "Consensus cannot be reached! Number of Promises = ",
-            String.valueOf(promises), ", minimum majority = ", String.valueOf(minMajority));
-        logger.debug(true, "PAXOS Try", String.valueOf(i + 1), " failed!");
-        continue;
+        - Proposer sends propose(sequence, slot, proposedValue) request to every acceptor
+        - And if majority acceptors responds with Positive responses, Consensus would have
+          been achieved for that slot
+         */
+
+        if (!recoverSlots(sequenceNumber, fromSlot, lastSlot, acceptedValues)
+            || !acceptSlot(sequenceNumber, lastSlot + 1, command)) {
+          logger.debug(true, "PAXOS Try", String.valueOf(i + 1), " failed!");
+          backOff(i);
+          continue;
+        }
+
+        return true;
       }
+    }
+
+    return false;
+  }
+
+  /**
+   * Helper method for PAXOS Phase 1.
+   *
+   * @return - the proposal with the highest accepted sequence number for each slot from the
+   *           given slot, or null if the majority of acceptors did not promise
+   */
+  private Map<Long, Promise> sendPrepares(long sequenceNumber, long fromSlot) {
 
+    int minMajority = acceptors.size() / 2 + 1;
+    List<Callable<Promise>> prepareTasks = new ArrayList<>();
 
-      /*
-      Now we know that Majority of Acceptors have responded with Promises.
-      Proposer will now begin the Phase 2 of PAXOS.
+    for (PaxosServer paxosServer : acceptors.values()) {
+      prepareTasks.add(() -> paxosServer.prepare(sequenceNumber, fromSlot));
+    }
 
-      - Proposer sends propose(sequence, proposedValue) request to every acceptor
-      - And if majority acceptors responds with Positive responses, Consensus would have been achieved
-       */
+    int promises = 0;
+    Map<Long, Promise> acceptedValues = new HashMap<>();
 
-      List<Callable<Boolean>> proposeTasks = new ArrayList<>();
-      logger.debug(true, "Initiating PAXOS Phase 2 with proposed value: ", tempValue);
+    try {
+      // Returns as soon as the majority has promised, or can no longer promise
+      List<Promise> prepareResponses = QuorumCall.invoke(executorService, prepareTasks,
+          minMajority, promise -> promise.getStatus().equalsIgnoreCase("Promised"),
+          30, TimeUnit.SECONDS);
 
-      for (PaxosServer acceptor : acceptors.values()) {
-        String finalValue = value;
-        proposeTasks.add(() -> acceptor.propose(sequenceNumber, key, finalValue, operation, clientEmailId));
-      }
+      for (Promise promise : prepareResponses) {
 
-      int totalAcceptedResponses = 0;
+        // A rejection carries the acceptor's promised sequence number, the next try has to
+        // use a higher round than it
+        if (promise != null) {
+          observeSequenceNumber(promise.getSequenceNumber());
+        }
 
-      try {
-        List<Future<Boolean>> proposeResponses = executorService
-            .invokeAll(proposeTasks, 30, TimeUnit.SECONDS);
+        if (promise != null && promise.getStatus().equalsIgnoreCase("Promised")) {
+          promises++;
 
-        for (Future<Boolean> result : proposeResponses) {
-          Boolean isAccepted = result.get();
+          // If the response contains accepted values,
+          // choose the proposed value with the highest accepted sequence number for each slot
 
-          // To track how many Acceptors have accepted the Proposal
-          System.out.println("isAccepted: " + isAccepted);
-          if (isAccepted != null && isAccepted) {
-            totalAcceptedResponses++;
+          for (Map.Entry<Long, Promise> accepted : promise.getAcceptedProposals().entrySet()) {
+            Promise current = acceptedValues.get(accepted.getKey());
+
+            if (current == null || accepted.getValue().getAcceptedSequenceNumber()
+                > current.getAcceptedSequenceNumber()) {
+              acceptedValues.put(accepted.getKey(), accepted.getValue());
+            }
           }
         }
+      }
+    } catch (InterruptedException interruptedException) {
+      logger.error(true, "Error in PAXOS Phase 1!");
+    }
+
+    logger.debug(true, "Number of received Promises: ", String.valueOf(promises));
+
+    if (minMajority > promises) {
+      logger.debug(true, "Consensus cannot be reached! Number of Promises = ",
+          String.valueOf(promises), ", minimum majority = ", String.valueOf(minMajority));
+      return null;
+    }
+
+    return acceptedValues;
+  }
+
+  // Helper method that gets the slots in the range chosen, with the already accepted
+  // (or already learned) command of the slot, or with a no-op if the slot is a hole
+  private boolean recoverSlots(long sequenceNumber, long fromSlot, long lastSlot,
+                               Map<Long, Promise> acceptedValues) {
+
+    for (long slot = fromSlot; slot <= lastSlot; slot++) {
+      Command command = replicatedLog.getChosenCommand(slot);
 
-      } catch (ExecutionException | InterruptedException exception) {
-        logger.error(true, "Error in PAXOS Phase 2!");
+      if (command == null) {
+        command = acceptedValues.containsKey(slot)
+            ? acceptedValues.get(slot).getAcceptedValue() : Command.noOp();
       }
 
-      logger.debug(true, "Number of Accepted Responses received: ",
-          String.valueOf(totalAcceptedResponses));
+      logger.debug(true, "Recovering slot ", String.valueOf(slot), " with ", command.toString());
 
-      if (minMajority > totalAcceptedResponses) {
-        logger.debug(true, "Consensus cannot be reached! Number of accepted responses = ",
-            String.valueOf(totalAcceptedResponses), ", and minimum majority = ",
-            String.valueOf(minMajority));
-        logger.debug(true, "PAXOS Try", String.valueOf(i + 1), " failed!");
+      if (!acceptSlot(sequenceNumber, slot, command)) {
+        return false;
       }
+    }
+
+    return true;
+  }
+
+  // Helper method for PAXOS Phase 2 of a slot, learns the command if the majority accepted it
+  private boolean acceptSlot(long sequenceNumber, long slot, Command command) {
+
+    int minMajority = acceptors.size() / 2 + 1;
+    logger.debug(true, "Initiating PAXOS Phase 2 for slot ", String.valueOf(slot),
+        " with proposed value: ", describe(command));
+
+    List<Callable<Boolean>> proposeTasks = new ArrayList<>();
 
+    for (PaxosServer acceptor : acceptors.values()) {
+      proposeTasks.add(() -> acceptor.propose(sequenceNumber, slot, command));
+    }
 
-      /*
-      Now after the consensus have been achieved, the Value can be Learned.
-      Here, the learned value is committed.
-       */
+    int totalAcceptedResponses = 0;
 
-      logger.debug(true, "Consensus has been reached! Learning and Committing the value: ",
-          tempValue, " for Key: ", key);
+    try {
+      // Returns as soon as the majority has accepted, or can no longer accept
+      List<Boolean> proposeResponses = QuorumCall.invoke(executorService, proposeTasks,
+          minMajority, Boolean.TRUE::equals, 30, TimeUnit.SECONDS);
 
-      String response = learn(key, value, operation, clientEmailId);
+      for (Boolean isAccepted : proposeResponses) {
 
-      for (Map.Entry<String, PaxosServer> entry : acceptors.entrySet()) {
-        if (!serverId.equals(entry.getKey())) {
-          String finalValue = value;
-          executorService.submit(() -> entry.getValue().learn(key, finalValue, operation, clientEmailId));
+        // To track how many Acceptors have accepted the Proposal
+        if (isAccepted != null && isAccepted) {
+          totalAcceptedResponses++;
         }
       }
 
-      return response;
+    } catch (InterruptedException interruptedException) {
+      logger.error(true, "Error in PAXOS Phase 2!");
+    }
+
+    logger.debug(true, "Number of Accepted Responses received: ",
+        String.valueOf(totalAcceptedResponses));
+
+    if (minMajority > totalAcceptedResponses) {
+      logger.debug(true, "Consensus cannot be reached! Number of accepted responses = ",
+          String.valueOf(totalAcceptedResponses), ", and minimum majority = ",
+          String.valueOf(minMajority));
+      return false;
+    }
+
+    /*
+    Now after the consensus have been achieved, the Value can be Learned.
+    Here, the learned value is committed locally, and sent to all the other replicas.
+     */
+
+    logger.debug(true, "Consensus has been reached for slot ", String.valueOf(slot),
+        "! Learning and Committing the value: ", describe(command));
+
+    learn(slot, command);
+
+    for (Map.Entry<String, PaxosServer> entry : acceptors.entrySet()) {
+      if (!serverId.equals(entry.getKey())) {
+        try {
+          executorService.submit(() -> {
+            entry.getValue().learn(slot, command);
+            return null;
+          });
+        } catch (RejectedExecutionException rejectedExecutionException) {
+          // The replica learns the slot when it catches up
+          logger.error(true, "Replica executor is full, ", entry.getKey(),
+              " will catch up with slot ", String.valueOf(slot));
+        }
+      }
     }
 
-    logger.error(true, "Error! Consensus could Not be reached even after " +
-        "Maximum number of tries!");
-    return "Failed";
+    return true;
+  }
+
+  // Helper method to generate a sequence number with a round higher than any round seen so far
+  private long generateSequenceNumber() {
+    long round = highestRoundSeen.incrementAndGet();
+    return (round << SERVER_INDEX_BITS) | serverIndex;
   }
 
-  // Helper method to generate current system time as the sequence id number
-  private static long generateCurrentSequenceNumber() {
-    return System.currentTimeMillis();
+  // Helper method to remember the round of a sequence number received from another server
+  private void observeSequenceNumber(long sequenceNumber) {
+    long round = sequenceNumber >> SERVER_INDEX_BITS;
+    highestRoundSeen.accumulateAndGet(round, Math::max);
+  }
+
+  // Helper method that waits a random time, growing exponentially with the number of failed tries
+  private void backOff(int failedTries) {
+    long maximumDelay = Math.min(MAXIMUM_BACKOFF_MILLIS,
+        MINIMUM_BACKOFF_MILLIS << Math.min(failedTries, 20));
+    long delay = ThreadLocalRandom.current().nextLong(MINIMUM_BACKOFF_MILLIS, maximumDelay + 1);
+
+    logger.debug(true, "Backing off for ", String.valueOf(delay), " ms before the next try.");
+
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Helper method to get the index of the server from its ID (KVS3 -> 3)
+  private static int parseServerIndex(String serverId) {
+    try {
+      return Integer.parseInt(serverId.replaceAll("\\D", "")) & ((1 << SERVER_INDEX_BITS) - 1);
+    } catch (NumberFormatException numberFormatException) {
+      return serverId.hashCode() & ((1 << SERVER_INDEX_BITS) - 1);
+    }
   }
 
   @Override
-  public Promise prepare(long sequenceId, String key, String operation, String clientEmailId) throws RemoteException {
+  public Promise prepare(long sequenceId, long slot) throws RemoteException {
 
     /*
     // Random failure
@@ -263,141 +741,670 @@ public class KeyValueStoreServer implements Server, PaxosServer {
      */
 
     logger.debug(true, "#KVS " + serverId + ", Prepare() request received with sequence id: ",
-        String.valueOf(sequenceId), ", for Key: ", key);
+        String.valueOf(sequenceId), ", from Slot: ", String.valueOf(slot));
+
+    Promise promise = new Promise();
+    CompletableFuture<Long> durable;
+
+    synchronized (this) {
+      observeSequenceNumber(sequenceId);
+
+      // Reject the prepare request of a proposer which is behind the compacted log, since it
+      // would fill slots that are already chosen with no-ops
+      if (slot < compactedBeforeSlot) {
+        logger.debug(true, "Rejecting the prepare() request from slot: ", String.valueOf(slot),
+            ", since the slots before ", String.valueOf(compactedBeforeSlot),
+            " are compacted. The proposer has to catch up first.");
+        promise.setSequenceNumber(promisedSequenceNumber);
+        promise.setStatus("Rejected");
+        return promise;
+      }
 
+      // Reject the current prepare request if a larger sequence number was promised / accepted
+      if (sequenceId <= promisedSequenceNumber) {
+        logger.debug(true, "Rejecting the prepare() request because sequence id: ",
+            String.valueOf(sequenceId), ", and current sequence id: ",
+            String.valueOf(promisedSequenceNumber));
+        promise.setSequenceNumber(promisedSequenceNumber);
+        promise.setStatus("Rejected");
+        return promise;
+      }
 
-    if (!metadata.containsKey(key)) {
-      metadata.put(key, new Promise());
+      // Setting sequence id to the larger sequence number from the prepare request
+      // But, return the proposals first, if there are already accepted proposals
+      promisedSequenceNumber = sequenceId;
+      promise.setSequenceNumber(sequenceId);
+      promise.setStatus("Promised");
+      promise.setAcceptedProposals(new HashMap<>(acceptedProposals.tailMap(slot)));
+      durable = writeAheadLog.append(PaxosLogRecord.promised(sequenceId));
     }
 
-    // If operation is Share then do this
-    if (operation.equalsIgnoreCase("SHARE")) {
-      metadata.put(key, new Promise());
+    // The promise is only sent once it is on disk. Waiting outside of the monitor lets the
+    // concurrent prepare() and propose() requests share one force of the log.
+    if (!awaitDurable(durable)) {
+      promise.setAcceptedProposals(new HashMap<>());
+      promise.setStatus("Rejected");
+      return promise;
     }
 
-    long currentSequenceId = metadata.get(key).getSequenceNumber();
+    logger.debug(true, "#KVS " + serverId + ", Responding back to the prepare() request with: ",
+        promise.toString(), " and ", String.valueOf(promise.getAcceptedProposals().size()),
+        " accepted proposals");
+
+    return promise;
+  }
 
-    // Reject the current prepare request if a larger sequence number was promised / accepted
-    if (sequenceId <= currentSequenceId) {
-      logger.debug(true, "Rejecting the prepare() request because sequence id: ",
-          String.valueOf(sequenceId), ", and current sequence id: ",
-          String.valueOf(currentSequenceId));
-      Promise promise = new Promise();
-      promise.setStatus("Rejected");
-      return promise;
+  @Override
+  public Boolean propose(long sequenceId, long slot, Command command) throws RemoteException {
+
+    logger.debug(true, "#KVS " + serverId + ", Propose() request received with sequence id: ",
+        String.valueOf(sequenceId), ", for Slot: ", String.valueOf(slot), ", and Proposed value: ",
+        describe(command));
+
+    CompletableFuture<Long> durable;
+
+    synchronized (this) {
+      observeSequenceNumber(sequenceId);
+
+      // Do not accept - if the sequence id in propose request < highest sequence id seen until now
+
+      if (sequenceId < promisedSequenceNumber) {
+        logger.debug(true, "Rejecting propose() request, since the Sequence Id: ",
+            String.valueOf(sequenceId), " is lower than the maximum promised sequence number: ",
+            String.valueOf(promisedSequenceNumber));
+
+        return false;
+      }
+
+      // If everything is fine, accept the current proposal
+      // Store its value and the sequence id number as the accepted value, and accepted sequence id
+
+      logger.debug(true, "Accepting proposed value: ", describe(command), ", for Slot: ",
+          String.valueOf(slot), ", and setting the accepted sequence id number to: ",
+          String.valueOf(sequenceId));
+
+      promisedSequenceNumber = sequenceId;
+      acceptedProposals.put(slot, createAcceptedProposal(sequenceId, command));
+      durable = writeAheadLog.append(PaxosLogRecord.accepted(slot, sequenceId, command));
     }
 
-    // Setting sequence id to the larger sequence number from the prepare request
-    // But, return the proposal first, if there's already an accepted proposal
-    metadata.get(key).setSequenceNumber(sequenceId);
+    // The proposal is only acknowledged once it is on disk
+    return awaitDurable(durable);
+  }
+
+  // Helper method to create the accepted proposal of a slot
+  private Promise createAcceptedProposal(long sequenceId, Command command) {
+    Promise acceptedProposal = new Promise();
+    acceptedProposal.setSequenceNumber(sequenceId);
+    acceptedProposal.setStatus("Accepted");
+    acceptedProposal.setAccepted(true);
+    acceptedProposal.setAcceptedValue(command);
+    acceptedProposal.setAcceptedSequenceNumber(sequenceId);
+    return acceptedProposal;
+  }
 
-    if (!metadata.get(key).getAccepted()) {
-      metadata.get(key).setStatus("Promised");
+  @Override
+  public void learn(long slot, Command command) {
+    // Need to commit the chosen command, once all the previous slots are committed
+    logger.debug(true, "Learning the Value: ", describe(command), " for Slot: ",
+        String.valueOf(slot));
+
+    learnAll(Collections.singletonMap(slot, command));
+
+    // An earlier slot is missing, it is fetched from the others if it does not arrive shortly
+    if (replicatedLog.highestChosenSlot() >= replicatedLog.getApplyCursor()
+        && catchUpScheduled.compareAndSet(false, true)) {
+      backgroundTasks.schedule(this::catchUp, CATCH_UP_GAP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
     }
+  }
 
-    logger.debug(true, "#KVS " + serverId + ", Responding back to the prepare() request with: ",
-        metadata.get(key).toString());
+  // Helper method that logs the chosen commands and then applies them. They are logged with one
+  // force of the write-ahead log, so they are applied again on restart.
+  private void learnAll(Map<Long, Command> commands) {
+    Map<Long, Command> commandsInSlotOrder = new TreeMap<>(commands);
+    snapshotLock.readLock().lock();
+
+    try {
+      List<CompletableFuture<Long>> durable = new ArrayList<>();
+
+      for (Map.Entry<Long, Command> entry : commandsInSlotOrder.entrySet()) {
+        if (!replicatedLog.isChosen(entry.getKey())) {
+          durable.add(writeAheadLog.append(
+              PaxosLogRecord.chosen(entry.getKey(), entry.getValue())));
+        }
+      }
 
-    return new Promise(metadata.get(key));
+      for (CompletableFuture<Long> record : durable) {
+        if (!awaitDurable(record)) {
+          logger.error(true, "Chosen commands are applied without being logged!");
+          break;
+        }
+      }
+
+      for (Map.Entry<Long, Command> entry : commandsInSlotOrder.entrySet()) {
+        replicatedLog.commit(entry.getKey(), entry.getValue());
+      }
+    } finally {
+      snapshotLock.readLock().unlock();
+    }
   }
 
   @Override
-  public Boolean propose(long sequenceId, String key, String value, String operation, String clientEmailId)
-      throws RemoteException {
+  public long getApplyCursor() {
+    return replicatedLog.getApplyCursor();
+  }
+
+  @Override
+  public Map<Long, Command> getChosenCommands(long fromSlot, int maximumCommands) {
+    return replicatedLog.getChosenCommands(fromSlot, maximumCommands);
+  }
+
+  @Override
+  public byte[] getSnapshot() throws RemoteException {
+    ReplicaSnapshot snapshot;
+    snapshotLock.writeLock().lock();
 
-    String tempValue = null;
     try {
-      tempValue = parseByteArray(value);
-    } catch (Exception e) {
-      tempValue = value;
+      snapshot = captureSnapshot();
+    } finally {
+      snapshotLock.writeLock().unlock();
     }
 
-    logger.debug(true, "#KVS " + serverId + ", Prepare() request received with sequence id: ",
-        String.valueOf(sequenceId), ", for Key: ", key, ", and Proposed value: ", tempValue);
+    // The acceptor state belongs to this replica, it is not installed by the others
+    snapshot.setAcceptedProposals(new HashMap<>());
 
-    if (!metadata.containsKey(key)) {
-      logger.error(true, "Cannot execute propose() Key does not have the correct metadata");
-      return false;
+    try {
+      return snapshot.toByteArray();
+    } catch (IOException ioException) {
+      throw new RemoteException("Error serializing the snapshot of " + serverId, ioException);
     }
+  }
+
+  @Override
+  public AppliedValue<long[]> getMerkleTree() {
+    return readAtApplyCursor(keyValueStore.getMerkleTree()::getNodes);
+  }
 
-    // Do not accept - if the sequence id in propose request != highest sequence id seen until now
+  @Override
+  public AppliedValue<Map<String, ItineraryRecord>> getBucketItineraries(int[] buckets) {
+    return readAtApplyCursor(() -> keyValueStore.getBucketItineraries(buckets));
+  }
+
+  /**
+   * Anti-entropy: compares the Merkle tree of this replica with the one of the leader, starting
+   * from the root and only descending into the nodes that differ, then replaces the itineraries
+   * of the buckets that differ with the ones of the leader. Only the itineraries of the buckets
+   * that differ are sent, not the whole store.
+   *
+   * The leader sends its tree with the apply cursor it was read at, and the local tree is read
+   * once this replica has applied exactly the same slots. The buckets are repaired the same way,
+   * at the apply cursor the leader read them at, so writes during the exchange are not mistaken
+   * for differences, and are not undone by the repair.
+   */
+  private void runAntiEntropy() {
+    if (leaderId == null || serverId.equals(leaderId)) {
+      return;
+    }
 
-    if (sequenceId != metadata.get(key).getSequenceNumber()) {
-      logger.debug(true, "Rejecting propose() request, since the Sequence Id: ",
-          String.valueOf(sequenceId), " does not match with maximum promised sequence number: ",
-          String.valueOf(metadata.get(key).getSequenceNumber()));
+    long startTime = System.nanoTime();
+    PaxosServer leader = acceptors.get(leaderId);
+    MerkleTree merkleTree = keyValueStore.getMerkleTree();
+    int leafCount = merkleTree.getLeafCount();
 
-      return false;
+    try {
+      AppliedValue<long[]> leaderTree = leader.getMerkleTree();
+      long[] leaderHashes = leaderTree.getValue();
+      long[] localHashes = awaitApplyCursor(leaderTree.getApplyCursor(), merkleTree::getNodes);
+
+      if (localHashes == null) {
+        return;
+      }
+
+      // Walk down the levels of the tree that differ, down to the buckets
+      List<Integer> differentBuckets = new ArrayList<>();
+      List<Integer> nodeIndexes = Collections.singletonList(1);
+
+      while (!nodeIndexes.isEmpty()) {
+        List<Integer> children = new ArrayList<>();
+
+        for (int nodeIndex : nodeIndexes) {
+          if (leaderHashes[nodeIndex] == localHashes[nodeIndex]) {
+            continue;
+          }
+
+          if (nodeIndex >= leafCount) {
+            differentBuckets.add(nodeIndex - leafCount);
+          } else {
+            children.add(2 * nodeIndex);
+            children.add(2 * nodeIndex + 1);
+          }
+        }
+
+        nodeIndexes = children;
+      }
+
+      if (differentBuckets.isEmpty()) {
+        return;
+      }
+
+      int[] buckets = differentBuckets.stream().mapToInt(Integer::intValue).toArray();
+      AppliedValue<Map<String, ItineraryRecord>> itineraries =
+          leader.getBucketItineraries(buckets);
+
+      Integer repaired = awaitApplyCursor(itineraries.getApplyCursor(), () -> {
+        // The repaired state is not in the log, so the next snapshot has to be taken
+        snapshotApplyCursor = -1;
+        return keyValueStore.repairBuckets(buckets, itineraries.getValue());
+      });
+
+      if (repaired == null) {
+        return;
+      }
+
+      logger.debug(true, "Anti-entropy with ", leaderId, ": ", String.valueOf(buckets.length),
+          " of ", String.valueOf(leafCount), " buckets differed at slot ",
+          String.valueOf(leaderTree.getApplyCursor() - 1), ", repaired ",
+          String.valueOf(repaired), " itineraries at slot ",
+          String.valueOf(itineraries.getApplyCursor() - 1), " (",
+          String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)), " ms)");
+    } catch (RemoteException remoteException) {
+      logger.error(true, "Error during the anti-entropy exchange with ", leaderId, ": ",
+          remoteException.toString());
+    }
+  }
+
+  // Helper method that reads the state of this replica together with the apply cursor, while no
+  // command is applied and no snapshot is installed
+  private <T> AppliedValue<T> readAtApplyCursor(Supplier<T> reader) {
+    snapshotLock.readLock().lock();
+
+    try {
+      return replicatedLog.readAtApplyCursor(reader);
+    } finally {
+      snapshotLock.readLock().unlock();
+    }
+  }
+
+  // Helper method that runs the action once this replica has applied exactly the slots before the
+  // cursor, and waits for it. Returns null if this replica is past the cursor already, or does
+  // not reach it in time.
+  private <T> T awaitApplyCursor(long cursor, Supplier<T> action) {
+    CompletableFuture<T> result;
+    snapshotLock.readLock().lock();
+
+    try {
+      result = replicatedLog.atApplyCursor(cursor, action);
+    } finally {
+      snapshotLock.readLock().unlock();
+    }
+
+    try {
+      return result.get(ANTI_ENTROPY_CURSOR_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException timeoutException) {
+      result.cancel(false);
+      logger.debug(true, "Anti-entropy skipped, slot ", String.valueOf(cursor - 1),
+          " was not applied in time.");
+      return null;
+    } catch (InterruptedException interruptedException) {
+      result.cancel(false);
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException executionException) {
+      logger.error(true, "Error during the anti-entropy exchange: ",
+          executionException.getCause().toString());
+      return null;
     }
+  }
+
+  /**
+   * Catch-up: compares the apply cursor of this replica with the others. If this replica is
+   * behind, it fetches the chosen commands it missed from the most up-to-date replica in bulk,
+   * or installs a snapshot of it if it is too far behind (or if that replica does not have the
+   * missed commands anymore).
+   */
+  private void catchUp() {
+    catchUpScheduled.set(false);
+
+    String aheadReplicaId = null;
+    long aheadApplyCursor = -1;
+
+    for (Map.Entry<String, PaxosServer> entry : acceptors.entrySet()) {
+      if (serverId.equals(entry.getKey())) {
+        continue;
+      }
+
+      try {
+        long applyCursor = entry.getValue().getApplyCursor();
+
+        if (applyCursor > aheadApplyCursor) {
+          aheadReplicaId = entry.getKey();
+          aheadApplyCursor = applyCursor;
+        }
+      } catch (RemoteException remoteException) {
+        // Unreachable replica, it can't be caught up from
+      }
+    }
+
+    upToDateReplicaId = aheadReplicaId;
+    upToDateApplyCursor = aheadApplyCursor;
+    long applyCursor = replicatedLog.getApplyCursor();
+
+    // The clients whose writes are applied here now, and who don't read again, are forgotten
+    clientWriteCursors.values()
+        .removeIf(writeCursor -> writeCursor.getApplyCursor() <= applyCursor);
+
+    if (aheadReplicaId == null || aheadApplyCursor <= applyCursor) {
+      return;
+    }
+
+    logger.debug(true, serverId, " has applied up to slot ", String.valueOf(applyCursor - 1),
+        ", and is behind ", aheadReplicaId, " which has applied up to slot ",
+        String.valueOf(aheadApplyCursor - 1), ". Catching up.");
+
+    PaxosServer aheadReplica = acceptors.get(aheadReplicaId);
+
+    try {
+      if (aheadApplyCursor - applyCursor > CATCH_UP_MAXIMUM_SLOTS
+          || !fetchChosenCommands(aheadReplica, aheadApplyCursor)) {
+        installSnapshot(aheadReplicaId, aheadReplica);
+      }
+    } catch (IOException | ClassNotFoundException exception) {
+      logger.error(true, "Error while catching up with ", aheadReplicaId, ": ",
+          exception.toString());
+    }
+  }
 
-    // If everything is fine, accept the current proposal
-    // Store its value and the sequence id number as the accepted value, and accepted sequence id
+  // Helper method that fetches and learns the missed commands in batches, returns false if the
+  // other replica does not have them anymore
+  private boolean fetchChosenCommands(PaxosServer aheadReplica, long targetApplyCursor)
+      throws RemoteException {
+
+    while (replicatedLog.getApplyCursor() < targetApplyCursor) {
+      long fromSlot = replicatedLog.getApplyCursor();
+      Map<Long, Command> commands = aheadReplica.getChosenCommands(fromSlot, CATCH_UP_BATCH_SIZE);
 
-    logger.debug(true, "Accepting proposed value: ", tempValue, ", for Key: ", key,
-        ", and setting the accepted sequence id number to: ", String.valueOf(sequenceId));
+      if (commands.isEmpty()) {
+        return false;
+      }
 
-    metadata.get(key).setStatus("Accepted");
-    metadata.get(key).setAccepted(true);
-    metadata.get(key).setAcceptedValue(value);
-    metadata.get(key).setAcceptedSequenceNumber(sequenceId);
+      logger.debug(true, "Fetched ", String.valueOf(commands.size()),
+          " chosen commands from slot ", String.valueOf(fromSlot));
+      learnAll(commands);
+    }
 
     return true;
   }
 
-  @Override
-  public String learn(String key, String value, String operation, String clientemailId)
+  // Helper method that replaces the itineraries and users of this replica with the snapshot of
+  // another replica, and takes a snapshot right away since its log has none of those commands
+  private void installSnapshot(String aheadReplicaId, PaxosServer aheadReplica)
       throws IOException, ClassNotFoundException {
-    // operation = PUT / GET / DELETE / EDIT / SHARE 213123 s@s.com
 
-    String tempValue = null;
+    long startTime = System.nanoTime();
+    byte[] bytes = aheadReplica.getSnapshot();
+    ReplicaSnapshot snapshot = ReplicaSnapshot.fromByteArray(bytes);
+
+    snapshotLock.writeLock().lock();
+
+    try {
+      if (snapshot.getApplyCursor() <= replicatedLog.getApplyCursor()) {
+        return;
+      }
+
+      keyValueStore.restoreSnapshot(snapshot);
+      replicatedLog.restoreSnapshot(snapshot);
+    } finally {
+      snapshotLock.writeLock().unlock();
+    }
+
+    logger.debug(true, "Installed the snapshot of ", aheadReplicaId, " up to slot ",
+        String.valueOf(snapshot.getApplyCursor() - 1), " (", String.valueOf(bytes.length),
+        " bytes) in ", String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)),
+        " ms");
+
+    takeSnapshot();
+  }
+
+  // Helper method that waits until a record of the write-ahead log is on disk
+  private boolean awaitDurable(CompletableFuture<Long> durable) {
     try {
-      tempValue = parseByteArray(value);
-    } catch (Exception e) {
-      tempValue = value;
+      durable.get();
+      return true;
+    } catch (ExecutionException executionException) {
+      logger.error(true, "Error writing to the write-ahead log of ", serverId);
+      return false;
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      return false;
     }
+  }
 
-    // Need to commit the accepted value
-    logger.debug(true, "Learning and Committing the Value: ", tempValue,
-        " for Key: ", key);
+  /**
+   * Takes a snapshot of the replica in the background. Only copying the state waits for the
+   * commands being applied, the reads continue meanwhile. Writing the snapshot to disk happens
+   * afterwards, then the log segments older than the snapshot are deleted.
+   */
+  private void takeSnapshot() {
+    long startTime = System.nanoTime();
+    ReplicaSnapshot snapshot;
+    CompletableFuture<Long> nextSegment;
+
+    snapshotLock.writeLock().lock();
+
+    try {
+      if (replicatedLog.getApplyCursor() == snapshotApplyCursor) {
+        // Nothing was applied since the last snapshot
+        return;
+      }
+
+      synchronized (this) {
+        snapshot = captureSnapshot();
+
+        // Every record appended until now is covered by the snapshot
+        nextSegment = writeAheadLog.rollSegment();
+      }
+    } finally {
+      snapshotLock.writeLock().unlock();
+    }
+
+    long copyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+    try {
+      long segment = nextSegment.get();
+      snapshot.writeTo(snapshotPath);
+      writeAheadLog.deleteSegmentsBefore(segment);
+      snapshotApplyCursor = snapshot.getApplyCursor();
+      compactLog(snapshot.getApplyCursor() - LOG_RETAINED_SLOTS);
+
+      logger.debug(false, "Snapshot of ", serverId, " taken up to slot ",
+          String.valueOf(snapshot.getApplyCursor() - 1), " with ",
+          String.valueOf(snapshot.getItineraries().size()), " itineraries and ",
+          String.valueOf(snapshot.getUsers().size()), " users in ",
+          String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)),
+          " ms (copy: ", String.valueOf(copyMillis), " ms)");
+    } catch (IOException | ExecutionException exception) {
+      logger.error(true, "Error while taking the snapshot of ", serverId, ": ",
+          exception.toString());
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Helper method that drops the chosen commands and the accepted proposals before the slot,
+  // which are covered by the snapshot
+  private void compactLog(long beforeSlot) {
+    if (beforeSlot <= compactedBeforeSlot) {
+      return;
+    }
+
+    replicatedLog.compact(beforeSlot);
+
+    synchronized (this) {
+      acceptedProposals.headMap(beforeSlot).clear();
+      compactedBeforeSlot = beforeSlot;
+    }
+  }
+
+  // Helper method that copies the state of the replica, called while no command is learned
+  private synchronized ReplicaSnapshot captureSnapshot() {
+    ReplicaSnapshot snapshot = new ReplicaSnapshot();
+    replicatedLog.captureSnapshot(snapshot);
+    keyValueStore.captureSnapshot(snapshot);
+    snapshot.setPromisedSequenceNumber(promisedSequenceNumber);
+    snapshot.setAcceptedProposals(
+        new HashMap<>(acceptedProposals.tailMap(snapshot.getApplyCursor())));
+    return snapshot;
+  }
+
+  /**
+   * Loads the last snapshot when the server starts, before the write-ahead log after it is
+   * replayed.
+   */
+  private void recoverFromSnapshot() {
+    long startTime = System.nanoTime();
+    ReplicaSnapshot snapshot;
+
+    try {
+      snapshot = ReplicaSnapshot.readFrom(snapshotPath);
+    } catch (IOException | ClassNotFoundException exception) {
+      logger.error(true, "Error reading the snapshot of ", serverId, ": ", exception.toString());
+      return;
+    }
+
+    if (snapshot == null) {
+      return;
+    }
+
+    keyValueStore.restoreSnapshot(snapshot);
+    replicatedLog.restoreSnapshot(snapshot);
+    promisedSequenceNumber = snapshot.getPromisedSequenceNumber();
+    observeSequenceNumber(promisedSequenceNumber);
+    acceptedProposals.putAll(snapshot.getAcceptedProposals());
+    snapshotApplyCursor = snapshot.getApplyCursor();
+
+    // Only the accepted proposals from the apply cursor of the snapshot are in it
+    compactedBeforeSlot = snapshot.getApplyCursor() - LOG_RETAINED_SLOTS;
+
+    logger.debug(true, "Restored ", serverId, " from the snapshot up to slot ",
+        String.valueOf(snapshot.getApplyCursor() - 1), " with ",
+        String.valueOf(snapshot.getItineraries().size()), " itineraries and ",
+        String.valueOf(snapshot.getUsers().size()), " users in ",
+        String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)), " ms");
+  }
+
+  /**
+   * Replays the write-ahead log after the snapshot when the server starts: restores the
+   * promised sequence number and the accepted proposals of the acceptor, and applies the chosen
+   * commands to the KeyValueStore in slot order.
+   */
+  private void recoverFromWriteAheadLog() {
+    List<Serializable> records = writeAheadLog.getRecoveredRecords();
+
+    if (records.isEmpty()) {
+      return;
+    }
+
+    logger.debug(true, "Replaying ", String.valueOf(records.size()),
+        " records of the write-ahead log of ", serverId);
+
+    for (Serializable serializable : records) {
+      PaxosLogRecord record = (PaxosLogRecord) serializable;
+
+      switch (record.getType()) {
+        case PROMISED:
+          promisedSequenceNumber = Math.max(promisedSequenceNumber, record.getSequenceNumber());
+          observeSequenceNumber(record.getSequenceNumber());
+          break;
+        case ACCEPTED:
+          promisedSequenceNumber = Math.max(promisedSequenceNumber, record.getSequenceNumber());
+          observeSequenceNumber(record.getSequenceNumber());
+          acceptedProposals.put(record.getSlot(),
+              createAcceptedProposal(record.getSequenceNumber(), record.getCommand()));
+          break;
+        case CHOSEN:
+          replicatedLog.commit(record.getSlot(), record.getCommand());
+          break;
+      }
+    }
+
+    logger.debug(true, "Recovered ", serverId, " up to slot ",
+        String.valueOf(replicatedLog.getApplyCursor() - 1), " with promised sequence number: ",
+        String.valueOf(promisedSequenceNumber));
+  }
+
+  // Helper method that applies a chosen command to the KeyValueStore
+  private String applyCommand(Command command) throws IOException, ClassNotFoundException {
+    // operation = PUT / DELETE / EDIT / SHARE 213123 s@s.com
+
+    logger.debug(true, "Committing the Value: ", describe(command), " for Key: ",
+        command.getKey());
+
+    // The histories are stamped with the time of the proposer, the same on every replica
+    this.keyValueStore.advanceAppliedTime(command.getProposedTime());
 
     String[] stringCompleteOperation = null;
 
-    switch (operation) {
+    switch (command.getOperation()) {
       case "PUT":
-        stringCompleteOperation = new String[3];
-        stringCompleteOperation[0] = "INSERT";
-        stringCompleteOperation[1] = key;
-        stringCompleteOperation[2] = value;
-        break;
+        // The itinerary is only decoded here, once per replica
+        return this.keyValueStore.insertItinerary(command.getKey(),
+            ItineraryCodec.decode(command.getPayload()));
+      case "PATCH":
+        return this.keyValueStore.patchItinerary(command.getKey(),
+            ItineraryCodec.decodePatch(command.getPayload()));
       case "GET":
         stringCompleteOperation = new String[2];
         stringCompleteOperation[0] = "GET";
-        stringCompleteOperation[1] = key;
+        stringCompleteOperation[1] = command.getKey();
         break;
       case "DELETE":
         stringCompleteOperation = new String[2];
         stringCompleteOperation[0] = "DELETE";
-        stringCompleteOperation[1] = key;
+        stringCompleteOperation[1] = command.getKey();
         break;
       case "EDIT":
         stringCompleteOperation = new String[2];
         stringCompleteOperation[0] = "EDIT";
-        stringCompleteOperation[1] = key;
+        stringCompleteOperation[1] = command.getKey();
         break;
       case "SHARE":
-        stringCompleteOperation = new String[3];
-        stringCompleteOperation[0] = "SHARE";
-        stringCompleteOperation[1] = key;
-        stringCompleteOperation[2] = value;
+      case "MDELETE":
+        // SHARE|id|email|email, MDELETE|id|id
+        String[] values = command.getValue() == null
+            ? new String[0]
+            : this.keyValueStore.parseMessage(command.getValue());
+        stringCompleteOperation = new String[2 + values.length];
+        stringCompleteOperation[0] = command.getOperation();
+        stringCompleteOperation[1] = command.getKey();
+        System.arraycopy(values, 0, stringCompleteOperation, 2, values.length);
         break;
     }
 
-    String result;
-
     assert stringCompleteOperation != null;
-    result = this.keyValueStore.executeOperation(stringCompleteOperation, clientemailId);
-    metadata.remove(key);
-    return result;
+    return this.keyValueStore.executeOperation(stringCompleteOperation,
+        command.getClientEmailId());
+  }
+
+  // Helper method to describe a command for logging, with the itinerary name instead of the
+  // encoded itinerary, which is read without decoding the whole itinerary
+  private String describe(Command command) {
+    if (command.isBatch()) {
+      return "BATCH of " + command.getCommands().size() + " commands";
+    }
+
+    String value = command.getValue();
+
+    if ("PATCH".equals(command.getOperation())) {
+      try {
+        value = ItineraryCodec.decodePatch(command.getPayload()).toString();
+      } catch (IOException ioException) {
+        value = null;
+      }
+    } else if (command.getPayload() != null) {
+      value = ItineraryCodec.peekName(command.getPayload());
+    }
+
+    return command.getOperation() + " " + command.getKey() + " " + value;
   }
 
   @Override
@@ -418,14 +1425,95 @@ public class KeyValueStoreServer implements Server, PaxosServer {
       result = validatedResponse[0];
     } else if (validatedResponse[0].contains("PAXOS")) {
       result = startPaxos(tokens, validatedResponse[1], clientEmailId);
+    } else if (!"PUT".equals(validatedResponse[1]) && readReplicaId(clientEmailId) != null) {
+      result = forwardRead(inputMessage, tokens, clientEmailId);
     } else {
-      result = this.keyValueStore.executeOperation(tokens, clientEmailId);
+      result = executeLocally(tokens, clientEmailId);
     }
 
     logger.debug(true, "Sending response message to the Client: ", result);
     return result;
   }
 
+  // Helper method that records the apply cursor of the leader after it applied a forwarded write
+  // of the client, if this replica has not applied that far yet
+  private void recordClientWrite(String clientEmailId, String replicaId, PaxosServer replica) {
+    if (clientEmailId == null) {
+      return;
+    }
+
+    try {
+      long applyCursor = replica.getApplyCursor();
+
+      if (applyCursor > replicatedLog.getApplyCursor()) {
+        clientWriteCursors.put(clientEmailId, new AppliedValue<>(applyCursor, replicaId));
+      }
+    } catch (RemoteException remoteException) {
+      logger.error(true, "Replica ", replicaId, " is not reachable! The next read of ",
+          clientEmailId, " may not see its write.");
+    }
+  }
+
+  // Helper method that returns the replica a read of the client is forwarded to, or null if it
+  // is served locally: the replica which applied the last write of the client if this one has
+  // not applied it yet, or the most up-to-date replica if this one lags too far behind it
+  private String readReplicaId(String clientEmailId) {
+    long applyCursor = replicatedLog.getApplyCursor();
+    AppliedValue<String> writeCursor =
+        clientEmailId == null ? null : clientWriteCursors.get(clientEmailId);
+
+    if (writeCursor != null) {
+      if (writeCursor.getApplyCursor() > applyCursor) {
+        return writeCursor.getValue();
+      }
+
+      clientWriteCursors.remove(clientEmailId, writeCursor);
+    }
+
+    String replicaId = upToDateReplicaId;
+    return replicaId != null && upToDateApplyCursor - applyCursor > READ_MAXIMUM_LAG_SLOTS
+        ? replicaId : null;
+  }
+
+  // Helper method that serves a read from another replica while this one has not applied the
+  // last write of the client, or lags too far behind, and serves it locally otherwise
+  private String forwardRead(String inputMessage, String[] tokens, String clientEmailId)
+      throws IOException, ClassNotFoundException {
+
+    String replicaId = readReplicaId(clientEmailId);
+
+    if (replicaId == null) {
+      return executeLocally(tokens, clientEmailId);
+    }
+
+    try {
+      logger.debug(true, serverId, " is behind, forwarding the read to: ", replicaId);
+      return ((Server) acceptors.get(replicaId)).executeOperation(inputMessage, clientEmailId);
+    } catch (RemoteException remoteException) {
+      logger.error(true, "Replica ", replicaId, " is not reachable! Reading locally.");
+      return executeLocally(tokens, clientEmailId);
+    }
+  }
+
+  // Helper method that executes the operation on this replica. All the keys of an MGET are read
+  // at the same apply cursor, so no command is applied between two of them.
+  private String executeLocally(String[] tokens, String clientEmailId)
+      throws IOException, ClassNotFoundException {
+
+    if (!tokens[0].equalsIgnoreCase("MGET")) {
+      return this.keyValueStore.executeOperation(tokens, clientEmailId);
+    }
+
+    return readAtApplyCursor(() -> {
+      try {
+        return this.keyValueStore.executeOperation(tokens, clientEmailId);
+      } catch (IOException | ClassNotFoundException exception) {
+        // The reads of the store do not fail
+        throw new IllegalStateException(exception);
+      }
+    }).getValue();
+  }
+
   @Override
   public String putItinerary(Itinerary itinerary, String clientEmailId) throws IOException, ClassNotFoundException {
     logger.debug(true, "Itinerary received from the Client: ", itinerary.getName());
@@ -437,23 +1525,30 @@ public class KeyValueStoreServer implements Server, PaxosServer {
       itineraryId = itinerary.getPrevItineraryId();
     }
 
-    // Converting itinerary object to string for PAXOS
-    logger.debug(true, "Serializing the Itinerary: ", itinerary.getName());
+    // An update of the version stored here only sends its changed fields through PAXOS,
+    // otherwise the itinerary is encoded once and carried as bytes
+    ItineraryRecord storedItinerary =
+        itinerary.getBaseVersion() > 0 ? this.keyValueStore.getItinerary(itineraryId) : null;
+    Command command;
+
+    if (storedItinerary != null && storedItinerary.getVersion() == itinerary.getBaseVersion()) {
+      ItineraryPatch patch = ItineraryPatch.between(storedItinerary, itinerary);
+      byte[] payload = ItineraryCodec.encodePatch(patch);
+
+      logger.debug(true, "Encoded the ", patch.toString(), " of Itinerary: ",
+          itinerary.getName(), " in ", String.valueOf(payload.length), " bytes");
 
-    // Convert Itinerary object to byte array
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    ObjectOutputStream oos = new ObjectOutputStream(bos);
-    oos.writeObject(itinerary);
-    byte[] bytes = bos.toByteArray();
+      command = Command.patch(itineraryId, payload, clientEmailId);
+    } else {
+      byte[] payload = ItineraryCodec.encode(itinerary);
 
-    // Convert byte array to base64-encoded string
-    String itineraryJson = Base64.getEncoder().encodeToString(bytes);
+      logger.debug(true, "Encoded the Itinerary: ", itinerary.getName(), " in ",
+          String.valueOf(payload.length), " bytes");
 
-    logger.debug(true, "Successfully Serialized the Itinerary: ", itinerary.getName());
+      command = Command.put(itineraryId, payload, clientEmailId);
+    }
 
-    assert itineraryJson != null;
-    String[] tokens = {"PUT", itineraryId, itineraryJson};
-    String result = startPaxos(tokens, "PUT", clientEmailId);
+    String result = submitCommand(command);
 
     logger.debug(true, "Sending response message to the Client: ", result);
     logger.debug(true, "Client Access the Created Itinerary of: ",
@@ -462,16 +1557,25 @@ public class KeyValueStoreServer implements Server, PaxosServer {
     return result;
   }
 
-  // Helper method to parse the Byte Array object and fetch the Itinerary Name for logging purpose
-  private String parseByteArray(String value) throws IOException, ClassNotFoundException {
-    if (value != null) {
-      byte[] decodedBytes = Base64.getDecoder().decode(value);
-      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(decodedBytes));
-      Itinerary deserializedItinerary = (Itinerary) ois.readObject();
-      return deserializedItinerary.getName();
+  @Override
+  public ItineraryPage listItineraries(String listType, String cursor, int limit,
+                                       String clientEmailId) throws RemoteException {
+    logger.debug(true, "Page of ", listType, " itineraries after ", cursor, " requested by: ",
+        clientEmailId);
+
+    // A lagging replica reads the page from another one, like the other reads
+    String replicaId = readReplicaId(clientEmailId);
+
+    if (replicaId != null) {
+      try {
+        return ((Server) acceptors.get(replicaId)).listItineraries(listType, cursor, limit,
+            clientEmailId);
+      } catch (RemoteException remoteException) {
+        logger.error(true, "Replica ", replicaId, " is not reachable! Reading locally.");
+      }
     }
 
-    return null;
+    return this.keyValueStore.listItineraries(listType, cursor, limit, clientEmailId);
   }
 
 
@@ -0,0 +1,172 @@
+package server.keyvaluestore;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merkle tree over the itineraries of a KeyValueStore, used by the anti-entropy exchange to find
+ * out whether two replicas agree, and which of their keys differ.
+ *
+ * Every key falls in one of a fixed number of buckets (the leaves). The hash of a leaf is the XOR
+ * of the hashes of its entries, and every inner node hashes its two children, so changing one
+ * entry only updates its leaf and the nodes above it. Two replicas exchange the hashes of their
+ * nodes (16 KB for 1024 leaves), compare their roots first and only descend into the children
+ * that differ, so only the itineraries of the differing buckets are sent, instead of the store.
+ *
+ * The nodes are stored in an array: node 1 is the root, the children of node i are 2i and
+ * 2i + 1, and the leaves are the nodes [leafCount, 2 * leafCount).
+ */
+class MerkleTree {
+
+  private final int leafCount;
+  private final long[] nodes;
+
+  // Hashes of the entries in every leaf, Key: Itinerary ID, Value: entry hash
+  private final Map<String, Long>[] leafEntries;
+
+  /**
+   * Creates an empty tree.
+   *
+   * @param leafCount - number of buckets, a power of two
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  MerkleTree(int leafCount) {
+    if (leafCount < 1 || Integer.bitCount(leafCount) != 1) {
+      throw new IllegalArgumentException("The number of leaves must be a power of two: "
+          + leafCount);
+    }
+
+    this.leafCount = leafCount;
+    this.nodes = new long[2 * leafCount];
+    this.leafEntries = new Map[leafCount];
+
+    for (int i = 0; i < leafCount; i++) {
+      leafEntries[i] = new HashMap<>();
+    }
+  }
+
+  /**
+   * Hash of an entry. The list of shared users is part of it since sharing an itinerary does not
+   * change its version.
+   *
+   * @param itineraryId - key of the entry
+   * @param version - version of the itinerary
+   * @param sharedWithUsers - emails of the users the itinerary is shared with
+   * @return - hash of the entry
+   */
+  static long hashEntry(String itineraryId, int version, List<String> sharedWithUsers) {
+    long hash = hashString(0xcbf29ce484222325L, itineraryId);
+    hash = mix(hash ^ version);
+
+    for (String emailId : sharedWithUsers) {
+      hash = hashString(hash, emailId);
+    }
+
+    return mix(hash);
+  }
+
+  int getLeafCount() {
+    return leafCount;
+  }
+
+  /**
+   * Returns the leaf (bucket) of a key.
+   *
+   * @param itineraryId - key
+   * @return - index of the bucket, 0 <= bucket < leafCount
+   */
+  int bucketOf(String itineraryId) {
+    return (int) (mix(hashString(0, itineraryId)) & (leafCount - 1));
+  }
+
+  /**
+   * Adds the entry, or replaces its previous hash.
+   *
+   * @param itineraryId - key
+   * @param entryHash - hash of the entry, see hashEntry
+   */
+  synchronized void put(String itineraryId, long entryHash) {
+    int bucket = bucketOf(itineraryId);
+    Long previousHash = leafEntries[bucket].put(itineraryId, entryHash);
+    long delta = entryHash ^ (previousHash == null ? 0 : previousHash);
+
+    if (delta != 0) {
+      updateLeaf(bucket, delta);
+    }
+  }
+
+  /**
+   * Removes the entry, if it is in the tree.
+   *
+   * @param itineraryId - key
+   */
+  synchronized void remove(String itineraryId) {
+    int bucket = bucketOf(itineraryId);
+    Long previousHash = leafEntries[bucket].remove(itineraryId);
+
+    if (previousHash != null) {
+      updateLeaf(bucket, previousHash);
+    }
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  synchronized void clear() {
+    for (Map<String, Long> entries : leafEntries) {
+      entries.clear();
+    }
+
+    Arrays.fill(nodes, 0);
+  }
+
+  /**
+   * Returns the hashes of all the nodes, indexed like the nodes (index 0 is unused).
+   *
+   * @return - copy of the hashes
+   */
+  synchronized long[] getNodes() {
+    return nodes.clone();
+  }
+
+  /**
+   * Returns the keys of the entries in a bucket.
+   *
+   * @param bucket - index of the bucket
+   * @return - copy of the keys
+   */
+  synchronized Set<String> getKeys(int bucket) {
+    return new HashSet<>(leafEntries[bucket].keySet());
+  }
+
+  // Helper method that XORs the delta into the leaf, and rehashes the nodes above it
+  private void updateLeaf(int bucket, long delta) {
+    int node = leafCount + bucket;
+    nodes[node] ^= delta;
+
+    for (node /= 2; node >= 1; node /= 2) {
+      nodes[node] = mix(nodes[2 * node] * 31 + mix(nodes[2 * node + 1]));
+    }
+  }
+
+  // FNV-1a over the characters of the string
+  private static long hashString(long hash, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+
+    return hash;
+  }
+
+  // Finalizer of SplitMix64, spreads the bits of the hash
+  private static long mix(long hash) {
+    hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+    return hash ^ (hash >>> 31);
+  }
+}
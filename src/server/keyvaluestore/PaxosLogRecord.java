@@ -0,0 +1,61 @@
+package server.keyvaluestore;
+
+import java.io.Serializable;
+import server.Command;
+
+/**
+ * State transition of a PAXOS replica, stored in its write-ahead log: a promise made in
+ * prepare(), a proposal accepted in propose(), or a command learned as chosen for a slot.
+ */
+class PaxosLogRecord implements Serializable {
+
+  enum Type {
+    PROMISED, ACCEPTED, CHOSEN
+  }
+
+  private final Type type;
+
+  // Slot of the accepted or chosen command, -1 for a promise (which covers all the slots)
+  private final long slot;
+
+  // Promised or accepted sequence number, -1 for a chosen command
+  private final long sequenceNumber;
+
+  // Accepted or chosen command, null for a promise
+  private final Command command;
+
+  private PaxosLogRecord(Type type, long slot, long sequenceNumber, Command command) {
+    this.type = type;
+    this.slot = slot;
+    this.sequenceNumber = sequenceNumber;
+    this.command = command;
+  }
+
+  static PaxosLogRecord promised(long sequenceNumber) {
+    return new PaxosLogRecord(Type.PROMISED, -1, sequenceNumber, null);
+  }
+
+  static PaxosLogRecord accepted(long slot, long sequenceNumber, Command command) {
+    return new PaxosLogRecord(Type.ACCEPTED, slot, sequenceNumber, command);
+  }
+
+  static PaxosLogRecord chosen(long slot, Command command) {
+    return new PaxosLogRecord(Type.CHOSEN, slot, -1, command);
+  }
+
+  Type getType() {
+    return type;
+  }
+
+  long getSlot() {
+    return slot;
+  }
+
+  long getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  Command getCommand() {
+    return command;
+  }
+}
@@ -0,0 +1,185 @@
+package server.keyvaluestore;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import server.itinerary.ItineraryRecord;
+
+/**
+ * Bounded cache of the GET responses of the itineraries, so that an itinerary which is read far
+ * more often than it changes is rendered once per version instead of on every read.
+ *
+ * An entry is the response rendered from one record, and is only returned for that same record:
+ * a write publishes a new record, so an entry never outlives the version (or the shared users)
+ * it was rendered from, even if it's put by a reader racing with the write. The KeyValueStore
+ * also invalidates the entry of every itinerary it writes, so the memory is released right away.
+ *
+ * A read takes no lock: the entries are in a ConcurrentHashMap, and a hit only sets the reference
+ * bit of its entry. When a miss puts the cache over its size, it evicts with the CLOCK algorithm:
+ * a hand goes round the entries, clearing the bits that are set and evicting the first entry
+ * whose bit is clear, i.e. one not read since the hand last passed it. This approximates least
+ * recently read. Only the misses of a full cache take the lock of the hand, never the hits.
+ */
+class RenderedItineraryCache {
+
+  private final int maximumSize;
+
+  // Key: Itinerary ID, Value: response rendered from its record
+  private final ConcurrentHashMap<String, RenderedItinerary> renderedItineraries;
+
+  // Hand of the clock, guarded by the lock of clockLock
+  private final Object clockLock;
+  private Iterator<Map.Entry<String, RenderedItinerary>> clockHand;
+
+  // Metrics, counted by every read
+  private final LongAdder hits, misses, evictions;
+
+  /**
+   * Creates the cache.
+   *
+   * @param maximumSize - number of responses kept, 0 turns the cache off
+   */
+  RenderedItineraryCache(int maximumSize) {
+    this.maximumSize = Math.max(0, maximumSize);
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+    this.renderedItineraries = new ConcurrentHashMap<>();
+    this.clockLock = new Object();
+  }
+
+  /**
+   * Returns the response of the record, rendered by ItineraryRecord.toString, from the cache if
+   * it was already rendered.
+   *
+   * @param itineraryId - key of the itinerary
+   * @param itinerary - current record of the itinerary
+   * @return - rendered response
+   */
+  String render(String itineraryId, ItineraryRecord itinerary) {
+    if (maximumSize == 0) {
+      return itinerary.toString();
+    }
+
+    RenderedItinerary renderedItinerary = renderedItineraries.get(itineraryId);
+
+    if (renderedItinerary != null && renderedItinerary.itinerary == itinerary) {
+      // Only written when it changes, so that the hits on a popular entry don't contend
+      if (!renderedItinerary.isReferenced) {
+        renderedItinerary.isReferenced = true;
+      }
+
+      hits.increment();
+      return renderedItinerary.response;
+    }
+
+    misses.increment();
+
+    // Two readers may both render it, the last one's entry is kept
+    String response = itinerary.toString();
+    renderedItineraries.put(itineraryId, new RenderedItinerary(itinerary, response));
+
+    if (renderedItineraries.size() > maximumSize) {
+      evict();
+    }
+
+    return response;
+  }
+
+  // Helper method that evicts entries with the CLOCK algorithm until the cache fits in its size
+  private void evict() {
+    synchronized (clockLock) {
+      // After a turn of the hand, entries are evicted even if they were read again meanwhile, so
+      // that the readers can't keep the cache over its size
+      long remainingSteps = renderedItineraries.size();
+
+      while (renderedItineraries.size() > maximumSize) {
+        if (clockHand == null || !clockHand.hasNext()) {
+          clockHand = renderedItineraries.entrySet().iterator();
+
+          if (!clockHand.hasNext()) {
+            return;
+          }
+        }
+
+        Map.Entry<String, RenderedItinerary> entry = clockHand.next();
+        RenderedItinerary renderedItinerary = entry.getValue();
+
+        if (renderedItinerary.isReferenced && remainingSteps-- > 0) {
+          renderedItinerary.isReferenced = false;
+        } else if (renderedItineraries.remove(entry.getKey(), renderedItinerary)) {
+          evictions.increment();
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the response of the itinerary, after it was put, replaced or removed.
+   *
+   * @param itineraryId - key of the itinerary
+   */
+  void invalidate(String itineraryId) {
+    if (maximumSize == 0) {
+      return;
+    }
+
+    renderedItineraries.remove(itineraryId);
+  }
+
+  /**
+   * Removes all the responses.
+   */
+  void clear() {
+    renderedItineraries.clear();
+  }
+
+  int size() {
+    return renderedItineraries.size();
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  long getEvictions() {
+    return evictions.sum();
+  }
+
+  // Share of the reads that were served from the cache, 0 if there was no read
+  double getHitRate() {
+    long currentHits = hits.sum();
+    long reads = currentHits + misses.sum();
+    return reads == 0 ? 0 : (double) currentHits / reads;
+  }
+
+  /**
+   * Returns the metrics of the cache in one line, for logging.
+   *
+   * @return - metrics
+   */
+  String getMetrics() {
+    return String.format("Response cache: size = %d/%d, hits = %d, misses = %d, "
+            + "hit rate = %.1f%%, evictions = %d", size(), maximumSize, getHits(), getMisses(),
+        getHitRate() * 100, getEvictions());
+  }
+
+  private static final class RenderedItinerary {
+
+    private final ItineraryRecord itinerary;
+    private final String response;
+
+    // Set by a read, cleared by the hand of the clock
+    private volatile boolean isReferenced;
+
+    private RenderedItinerary(ItineraryRecord itinerary, String response) {
+      this.itinerary = itinerary;
+      this.response = response;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package server.keyvaluestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import server.Command;
+import server.Promise;
+import server.itinerary.ItineraryRecord;
+import server.user.User;
+
+/**
+ * Point-in-time copy of a replica: the KeyValueStore and the UserDB as of the apply cursor of
+ * the replicated log, and the state of the acceptor. The write-ahead log segments older than
+ * the snapshot are deleted, and a restarted replica loads the snapshot and only replays the
+ * records appended after it. A replica that is too far behind installs the snapshot of another
+ * replica instead of replaying the commands it missed.
+ */
+class ReplicaSnapshot implements Serializable {
+
+  // All the slots before this one are applied to the itineraries and the users
+  private long applyCursor;
+
+  // Itineraries, their older versions and users, copied so that they don't change while being
+  // written
+  private Map<String, ItineraryRecord> itineraries;
+  private Map<String, ItineraryHistory> itineraryHistories;
+  private Map<String, User> users;
+
+  // Time of the last applied command, which the histories are stamped and pruned with
+  private long appliedTime;
+
+  // Chosen commands that wait for an earlier slot, and the IDs of the commands applied in the
+  // retained window of the log, with their slot
+  private Map<Long, Command> unappliedCommands;
+  private Map<String, Long> appliedCommandSlots;
+
+  // Acceptor state
+  private long promisedSequenceNumber;
+  private Map<Long, Promise> acceptedProposals;
+
+  ReplicaSnapshot() {
+    this.itineraries = new HashMap<>();
+    this.itineraryHistories = new HashMap<>();
+    this.users = new HashMap<>();
+    this.unappliedCommands = new HashMap<>();
+    this.appliedCommandSlots = new HashMap<>();
+    this.acceptedProposals = new HashMap<>();
+  }
+
+  /**
+   * Writes the snapshot to the given file. The snapshot is first written to a temporary file and
+   * then moved in place, so a crash never leaves a half written snapshot behind.
+   *
+   * @param path - snapshot file
+   * @throws IOException - if the snapshot can't be written
+   */
+  void writeTo(Path path) throws IOException {
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try (FileOutputStream fos = new FileOutputStream(temporaryPath.toFile());
+         ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+      oos.writeObject(this);
+      oos.flush();
+      fos.getFD().sync();
+    }
+
+    Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the snapshot from the given file.
+   *
+   * @param path - snapshot file
+   * @return - snapshot, or null if there is no snapshot yet
+   * @throws IOException - if the snapshot can't be read
+   * @throws ClassNotFoundException - if the snapshot can't be deserialized
+   */
+  static ReplicaSnapshot readFrom(Path path) throws IOException, ClassNotFoundException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+
+    try (ObjectInputStream ois = new ObjectInputStream(
+        new BufferedInputStream(Files.newInputStream(path)))) {
+      return (ReplicaSnapshot) ois.readObject();
+    }
+  }
+
+  /**
+   * Serializes the snapshot, to send it to a lagging replica.
+   *
+   * @return - serialized snapshot
+   * @throws IOException - if the snapshot can't be serialized
+   */
+  byte[] toByteArray() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(this);
+    }
+
+    return bos.toByteArray();
+  }
+
+  /**
+   * Deserializes the snapshot received from another replica.
+   *
+   * @param bytes - serialized snapshot
+   * @return - snapshot
+   * @throws IOException - if the snapshot can't be deserialized
+   * @throws ClassNotFoundException - if the snapshot can't be deserialized
+   */
+  static ReplicaSnapshot fromByteArray(byte[] bytes) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return (ReplicaSnapshot) ois.readObject();
+    }
+  }
+
+  long getApplyCursor() {
+    return applyCursor;
+  }
+
+  void setApplyCursor(long applyCursor) {
+    this.applyCursor = applyCursor;
+  }
+
+  Map<String, ItineraryRecord> getItineraries() {
+    return itineraries;
+  }
+
+  void setItineraries(Map<String, ItineraryRecord> itineraries) {
+    this.itineraries = itineraries;
+  }
+
+  Map<String, ItineraryHistory> getItineraryHistories() {
+    return itineraryHistories;
+  }
+
+  void setItineraryHistories(Map<String, ItineraryHistory> itineraryHistories) {
+    this.itineraryHistories = itineraryHistories;
+  }
+
+  Map<String, User> getUsers() {
+    return users;
+  }
+
+  void setUsers(Map<String, User> users) {
+    this.users = users;
+  }
+
+  long getAppliedTime() {
+    return appliedTime;
+  }
+
+  void setAppliedTime(long appliedTime) {
+    this.appliedTime = appliedTime;
+  }
+
+  Map<Long, Command> getUnappliedCommands() {
+    return unappliedCommands;
+  }
+
+  void setUnappliedCommands(Map<Long, Command> unappliedCommands) {
+    this.unappliedCommands = unappliedCommands;
+  }
+
+  Map<String, Long> getAppliedCommandSlots() {
+    return appliedCommandSlots;
+  }
+
+  void setAppliedCommandSlots(Map<String, Long> appliedCommandSlots) {
+    this.appliedCommandSlots = appliedCommandSlots;
+  }
+
+  long getPromisedSequenceNumber() {
+    return promisedSequenceNumber;
+  }
+
+  void setPromisedSequenceNumber(long promisedSequenceNumber) {
+    this.promisedSequenceNumber = promisedSequenceNumber;
+  }
+
+  Map<Long, Promise> getAcceptedProposals() {
+    return acceptedProposals;
+  }
+
+  void setAcceptedProposals(Map<Long, Promise> acceptedProposals) {
+    this.acceptedProposals = acceptedProposals;
+  }
+}
@@ -0,0 +1,317 @@
+package server.keyvaluestore;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+import logs.Logger;
+import server.AppliedValue;
+import server.Command;
+
+/**
+ * Slot indexed log of the commands chosen by PAXOS. Every replica applies the chosen commands to
+ * its KeyValueStore strictly in slot order (apply cursor), so that all the replicas go through
+ * the same sequence of states, no matter in which order the learn() messages arrive.
+ *
+ * Once the replica has a snapshot, the commands and applied command IDs older than a window of
+ * slots are compacted away, so the log doesn't grow with every write ever made. A replica
+ * which is further behind than the window installs a snapshot instead.
+ */
+class ReplicatedLog {
+
+  /**
+   * Applies a chosen command to the KeyValueStore and returns the response for the client.
+   */
+  interface CommandApplier {
+    String apply(Command command) throws IOException, ClassNotFoundException;
+  }
+
+  // Chosen commands: Key: Slot number, Value: Command
+  private final ConcurrentSkipListMap<Long, Command> chosenCommands;
+
+  // Results that proposers on this replica are waiting for: Key: Command ID
+  private final Map<String, CompletableFuture<String>> pendingResults;
+
+  // A command can be chosen in two slots if its proposer retried, it is applied only once.
+  // Key: Command ID, Value: slot it was applied in, in slot order. Guarded by this.
+  private final LinkedHashMap<String, Long> appliedCommandSlots;
+
+  // Actions waiting for the apply cursor to reach a slot, Key: Apply cursor. Guarded by this.
+  private final TreeMap<Long, List<Runnable>> cursorActions;
+
+  private final CommandApplier applier;
+  private final Logger logger;
+
+  // Next slot to be applied to the KeyValueStore, only changed while holding the lock
+  private volatile long applyCursor;
+
+  ReplicatedLog(CommandApplier applier, Logger logger) {
+    this.chosenCommands = new ConcurrentSkipListMap<>();
+    this.pendingResults = new ConcurrentHashMap<>();
+    this.appliedCommandSlots = new LinkedHashMap<>();
+    this.cursorActions = new TreeMap<>();
+    this.applier = applier;
+    this.logger = logger;
+    this.applyCursor = 0;
+  }
+
+  /**
+   * Registers the proposer's interest in the result of the given command. It has to be called
+   * before the command is proposed, so that the result can't be missed.
+   *
+   * @param commandId - ID of the command
+   * @return - future that completes once the command is applied on this replica
+   */
+  CompletableFuture<String> register(String commandId) {
+    return pendingResults.computeIfAbsent(commandId, id -> new CompletableFuture<>());
+  }
+
+  void unregister(String commandId) {
+    pendingResults.remove(commandId);
+  }
+
+  /**
+   * Records the command chosen for the slot, and applies all the commands that are now
+   * contiguous from the apply cursor.
+   *
+   * @param slot - slot number
+   * @param command - chosen command
+   */
+  synchronized void commit(long slot, Command command) {
+    if (slot < applyCursor || chosenCommands.containsKey(slot)) {
+      return;
+    }
+
+    chosenCommands.put(slot, command);
+
+    if (slot > applyCursor) {
+      logger.debug(true, "Slot ", String.valueOf(slot), " is chosen, waiting for slot ",
+          String.valueOf(applyCursor), " before applying it.");
+    }
+
+    Command next;
+    while ((next = chosenCommands.get(applyCursor)) != null) {
+      apply(applyCursor, next);
+      applyCursor++;
+      runCursorActions();
+    }
+  }
+
+  /**
+   * Reads the state of the replica while no command is applied, together with the apply cursor.
+   *
+   * @param reader - reads the state, it must not block
+   * @return - value read and the apply cursor it was read at
+   */
+  synchronized <T> AppliedValue<T> readAtApplyCursor(Supplier<T> reader) {
+    return new AppliedValue<>(applyCursor, reader.get());
+  }
+
+  /**
+   * Runs the action while the apply cursor is exactly at the given slot, i.e. once the commands
+   * of the slots before it are applied and before the command of the slot is: right away if the
+   * cursor is there already, or else by the thread which applies the slot before it. No command
+   * is applied while the action runs.
+   *
+   * @param cursor - apply cursor at which the action runs
+   * @param action - action, it must not block
+   * @return - future of the result of the action, completed with null if the cursor is already
+   *           past the slot or skips it by installing a snapshot. Cancelling it drops the action.
+   */
+  synchronized <T> CompletableFuture<T> atApplyCursor(long cursor, Supplier<T> action) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+
+    Runnable cursorAction = () -> {
+      if (result.isDone()) {
+        return;
+      }
+
+      if (applyCursor != cursor) {
+        result.complete(null);
+        return;
+      }
+
+      try {
+        result.complete(action.get());
+      } catch (RuntimeException exception) {
+        result.completeExceptionally(exception);
+      }
+    };
+
+    if (cursor <= applyCursor) {
+      cursorAction.run();
+    } else {
+      cursorActions.computeIfAbsent(cursor, slot -> new ArrayList<>()).add(cursorAction);
+    }
+
+    return result;
+  }
+
+  // Helper method that runs the actions waiting for the apply cursor to reach its current slot,
+  // or a slot it skipped. Called holding the lock.
+  private void runCursorActions() {
+    while (!cursorActions.isEmpty() && cursorActions.firstKey() <= applyCursor) {
+      for (Runnable cursorAction : cursorActions.pollFirstEntry().getValue()) {
+        cursorAction.run();
+      }
+    }
+  }
+
+  // Helper method to apply one command, a failing command must not stop the apply cursor
+  private void apply(long slot, Command command) {
+    if (command.isBatch()) {
+      for (Command batchedCommand : command.getCommands()) {
+        apply(slot, batchedCommand);
+      }
+
+      return;
+    }
+
+    CompletableFuture<String> result = pendingResults.get(command.getCommandId());
+
+    if (command.isNoOp()) {
+      return;
+    }
+
+    if (appliedCommandSlots.putIfAbsent(command.getCommandId(), slot) != null) {
+      logger.debug(true, "Command ", command.getCommandId(), " in slot ", String.valueOf(slot),
+          " was already applied. Skipping it.");
+      return;
+    }
+
+    try {
+      String response = applier.apply(command);
+
+      if (result != null) {
+        result.complete(response);
+      }
+    } catch (Exception exception) {
+      logger.error(true, "Error while applying slot ", String.valueOf(slot), ": ",
+          command.toString());
+
+      if (result != null) {
+        result.completeExceptionally(exception);
+      }
+    }
+  }
+
+  /**
+   * Copies the position of the log into the snapshot: the apply cursor, the chosen commands that
+   * are not applied yet, and the IDs of the commands applied in the retained window.
+   *
+   * @param snapshot - snapshot of the replica
+   */
+  synchronized void captureSnapshot(ReplicaSnapshot snapshot) {
+    snapshot.setApplyCursor(applyCursor);
+    snapshot.setUnappliedCommands(new HashMap<>(chosenCommands.tailMap(applyCursor)));
+    snapshot.setAppliedCommandSlots(new HashMap<>(appliedCommandSlots));
+  }
+
+  /**
+   * Continues the log from the snapshot, when the replica restarts. The commands before the
+   * apply cursor of the snapshot are already applied to the restored KeyValueStore.
+   *
+   * @param snapshot - snapshot of the replica
+   */
+  synchronized void restoreSnapshot(ReplicaSnapshot snapshot) {
+    applyCursor = snapshot.getApplyCursor();
+    runCursorActions();
+
+    // In slot order, like the commands applied by this replica
+    snapshot.getAppliedCommandSlots().entrySet().stream()
+        .sorted(Map.Entry.comparingByValue())
+        .forEach(entry -> appliedCommandSlots.putIfAbsent(entry.getKey(), entry.getValue()));
+
+    for (Map.Entry<Long, Command> entry : snapshot.getUnappliedCommands().entrySet()) {
+      chosenCommands.putIfAbsent(entry.getKey(), entry.getValue());
+    }
+
+    // Commands this replica already had after the cursor of the snapshot may now be contiguous
+    Command next;
+    while ((next = chosenCommands.get(applyCursor)) != null) {
+      apply(applyCursor, next);
+      applyCursor++;
+      runCursorActions();
+    }
+  }
+
+  /**
+   * Drops the chosen commands and the applied command IDs of the slots before the given one.
+   * Those slots have to be applied, and covered by a snapshot.
+   *
+   * @param beforeSlot - first slot which is kept
+   */
+  synchronized void compact(long beforeSlot) {
+    long compactedSlot = Math.min(beforeSlot, applyCursor);
+    chosenCommands.headMap(compactedSlot).clear();
+
+    Iterator<Long> appliedSlots = appliedCommandSlots.values().iterator();
+    while (appliedSlots.hasNext() && appliedSlots.next() < compactedSlot) {
+      appliedSlots.remove();
+    }
+  }
+
+  boolean isChosen(long slot) {
+    return chosenCommands.containsKey(slot);
+  }
+
+  Command getChosenCommand(long slot) {
+    return chosenCommands.get(slot);
+  }
+
+  long getApplyCursor() {
+    return applyCursor;
+  }
+
+  /**
+   * Returns the chosen commands of the contiguous slots from the given slot.
+   *
+   * @param fromSlot - first slot
+   * @param maximumCommands - maximum number of commands
+   * @return - Key: Slot number, Value: Chosen command. Empty if the slot is not known here.
+   */
+  Map<Long, Command> getChosenCommands(long fromSlot, int maximumCommands) {
+    Map<Long, Command> commands = new HashMap<>();
+    Command command;
+
+    for (long slot = fromSlot; commands.size() < maximumCommands
+        && (command = chosenCommands.get(slot)) != null; slot++) {
+      commands.put(slot, command);
+    }
+
+    return commands;
+  }
+
+  /**
+   * Returns the first slot (from the apply cursor) for which this replica does not know the
+   * chosen command.
+   *
+   * @return - first unchosen slot
+   */
+  synchronized long firstUnchosenSlot() {
+    long slot = applyCursor;
+
+    while (chosenCommands.containsKey(slot)) {
+      slot++;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Returns the highest slot which is known to be chosen on this replica, -1 if none.
+   *
+   * @return - highest chosen slot
+   */
+  long highestChosenSlot() {
+    return chosenCommands.isEmpty() ? -1 : chosenCommands.lastKey();
+  }
+}
@@ -0,0 +1,200 @@
+package server.keyvaluestore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import server.itinerary.ItineraryRecord;
+
+/**
+ * Inverted index over the words of the name, location and description of the itineraries, used
+ * by SEARCH.
+ *
+ * The words are kept sorted, so all the words starting with a prefix are one range of the map.
+ * Every itinerary also keeps its own sorted words, to check the other words of a query without
+ * going through their postings. Like the other indexes, it is updated by the KeyValueStore every
+ * time a record is put, replaced or removed, the writes are serialized and the reads don't lock.
+ */
+class SearchIndex {
+
+  // Key: word, Value: IDs of the itineraries containing it
+  private final ConcurrentSkipListMap<String, Set<String>> postings;
+
+  // Key: Itinerary ID, Value: its distinct words, sorted
+  private final ConcurrentHashMap<String, String[]> wordsByItinerary;
+
+  SearchIndex() {
+    this.postings = new ConcurrentSkipListMap<>();
+    this.wordsByItinerary = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Splits the text into lower case words, on everything that is not a letter or a digit.
+   *
+   * @param text - text to split, can be null
+   * @return - words, in the order of the text
+   */
+  static List<String> tokenize(String text) {
+    List<String> words = new ArrayList<>();
+
+    if (text != null) {
+      for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+        if (!word.isEmpty()) {
+          words.add(word);
+        }
+      }
+    }
+
+    return words;
+  }
+
+  /**
+   * Indexes the words of the current record of an itinerary, in place of its previous words.
+   *
+   * @param itineraryId - key of the itinerary
+   * @param itinerary - current record, or null if the itinerary was removed
+   */
+  synchronized void update(String itineraryId, ItineraryRecord itinerary) {
+    String[] previousWords = wordsByItinerary.getOrDefault(itineraryId, new String[0]);
+    String[] words = itinerary == null ? new String[0] : wordsOf(itinerary);
+
+    if (Arrays.equals(previousWords, words)) {
+      return;
+    }
+
+    // The new postings are added before the old ones are removed, so a reader never misses an
+    // itinerary which is only being replaced
+    for (String word : words) {
+      postings.computeIfAbsent(word, key -> ConcurrentHashMap.newKeySet()).add(itineraryId);
+    }
+
+    if (itinerary == null) {
+      wordsByItinerary.remove(itineraryId);
+    } else {
+      wordsByItinerary.put(itineraryId, words);
+    }
+
+    for (String word : previousWords) {
+      if (Arrays.binarySearch(words, word) < 0) {
+        postings.computeIfPresent(word, (key, itineraryIds) -> {
+          itineraryIds.remove(itineraryId);
+          return itineraryIds.isEmpty() ? null : itineraryIds;
+        });
+      }
+    }
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  synchronized void clear() {
+    postings.clear();
+    wordsByItinerary.clear();
+  }
+
+  /**
+   * Returns the IDs of the itineraries the user can access which have a word starting with every
+   * one of the prefixes.
+   *
+   * Either the postings of the most selective prefix are read and filtered by access, or the
+   * itineraries of the user are checked one by one, whichever reads fewer entries, so that a
+   * common prefix doesn't scan the whole index for a user with a few itineraries.
+   *
+   * @param prefixes - lower case prefixes, see tokenize
+   * @param createdItineraries - IDs of the itineraries created by the user
+   * @param sharedItineraries - IDs of the itineraries shared with the user
+   * @return - IDs of the matching itineraries
+   */
+  List<String> search(List<String> prefixes, Set<String> createdItineraries,
+                      Set<String> sharedItineraries) {
+    int accessibleItineraries = createdItineraries.size() + sharedItineraries.size();
+    Map<String, Set<String>> drivingPostings = null;
+    int drivingPostingsSize = accessibleItineraries;
+
+    // The prefix with the fewest postings, if they are fewer than the accessible itineraries
+    for (String prefix : prefixes) {
+      Map<String, Set<String>> prefixPostings = postingsOf(prefix);
+      int size = 0;
+
+      for (Set<String> itineraryIds : prefixPostings.values()) {
+        size += itineraryIds.size();
+
+        if (size >= drivingPostingsSize) {
+          break;
+        }
+      }
+
+      if (size < drivingPostingsSize) {
+        drivingPostings = prefixPostings;
+        drivingPostingsSize = size;
+      }
+    }
+
+    Set<String> matchingItineraries = new LinkedHashSet<>();
+
+    if (drivingPostings == null) {
+      for (Set<String> itineraryIds : Arrays.asList(createdItineraries, sharedItineraries)) {
+        for (String itineraryId : itineraryIds) {
+          if (matchesAll(itineraryId, prefixes)) {
+            matchingItineraries.add(itineraryId);
+          }
+        }
+      }
+    } else {
+      for (Set<String> itineraryIds : drivingPostings.values()) {
+        for (String itineraryId : itineraryIds) {
+          if ((createdItineraries.contains(itineraryId)
+              || sharedItineraries.contains(itineraryId))
+              && matchesAll(itineraryId, prefixes)) {
+            matchingItineraries.add(itineraryId);
+          }
+        }
+      }
+    }
+
+    return new ArrayList<>(matchingItineraries);
+  }
+
+  // Helper method that returns the postings of all the words starting with the prefix
+  private Map<String, Set<String>> postingsOf(String prefix) {
+    return postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+  }
+
+  // Helper method that checks whether the itinerary has a word starting with every prefix
+  private boolean matchesAll(String itineraryId, List<String> prefixes) {
+    String[] words = wordsByItinerary.get(itineraryId);
+
+    if (words == null) {
+      return false;
+    }
+
+    for (String prefix : prefixes) {
+      int index = Arrays.binarySearch(words, prefix);
+
+      // The first word which is not before the prefix is the only one which can start with it
+      if (index < 0) {
+        index = -index - 1;
+
+        if (index == words.length || !words[index].startsWith(prefix)) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  private static String[] wordsOf(ItineraryRecord itinerary) {
+    Set<String> words = new TreeSet<>();
+    words.addAll(tokenize(itinerary.getName()));
+    words.addAll(tokenize(itinerary.getLocation()));
+    words.addAll(tokenize(itinerary.getDescription()));
+    return words.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,252 @@
+package server.user;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exclusive locks of the 2PC participants, one per user email, held by a transaction from its
+ * vote until it commits or aborts.
+ *
+ * Checking and taking a lock costs O(1) whatever the number of transactions in progress. A
+ * transaction which finds the lock taken joins the queue of the lock and sleeps until the lock
+ * is handed to it, in arrival order, when the holder releases it. The lock of a user nobody
+ * holds or waits for is removed from the table.
+ *
+ * The coordinator aborts at the first no vote, so an abort can reach a participant before the
+ * vote of the transaction. The last aborted transactions are remembered, and never get a lock.
+ */
+class TransactionLockTable {
+
+  // Number of aborted transactions remembered
+  private static final int MAXIMUM_ABANDONED_TRANSACTIONS = 10000;
+
+  // Key: user email
+  private final ConcurrentHashMap<String, KeyLock> locks;
+
+  // Transactions waiting for a lock, Key: Transaction ID
+  private final ConcurrentHashMap<String, Waiter> waitingTransactions;
+
+  // Last aborted transactions, and the order they were aborted in, oldest first
+  private final Set<String> abandonedTransactions;
+  private final Queue<String> abandonedTransactionsOrder;
+
+  TransactionLockTable() {
+    this.locks = new ConcurrentHashMap<>();
+    this.waitingTransactions = new ConcurrentHashMap<>();
+    this.abandonedTransactions = ConcurrentHashMap.newKeySet();
+    this.abandonedTransactionsOrder = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Takes the lock of the key for the transaction, waiting for it if another transaction holds
+   * it.
+   *
+   * @param key - user email
+   * @param transactionId - transaction taking the lock
+   * @param timeout - maximum time to wait
+   * @param unit - unit of the timeout
+   * @return - true if the transaction holds the lock, false if it timed out or was abandoned
+   * @throws InterruptedException - if interrupted while waiting
+   */
+  boolean acquire(String key, String transactionId, long timeout, TimeUnit unit)
+      throws InterruptedException {
+
+    Waiter waiter;
+
+    while (true) {
+      KeyLock lock = locks.computeIfAbsent(key, KeyLock::new);
+
+      synchronized (lock) {
+        // Removed from the table by a release meanwhile, the next one is a new lock
+        if (lock.isRemoved) {
+          continue;
+        }
+
+        if (abandonedTransactions.contains(transactionId)) {
+          return false;
+        }
+
+        if (lock.holder == null || lock.holder.equals(transactionId)) {
+          lock.holder = transactionId;
+          return true;
+        }
+
+        waiter = new Waiter(transactionId, lock);
+        lock.waiters.add(waiter);
+        waitingTransactions.put(transactionId, waiter);
+
+        // Checked again once it can be found by abandon, which records the transaction first
+        if (abandonedTransactions.contains(transactionId)) {
+          waiter.isAbandoned = true;
+          waiter.wakeUp.countDown();
+        }
+
+        break;
+      }
+    }
+
+    boolean isGranted;
+
+    try {
+      waiter.wakeUp.await(timeout, unit);
+    } finally {
+      synchronized (waiter.lock) {
+        waitingTransactions.remove(transactionId, waiter);
+        isGranted = waiter.isGranted && !waiter.isAbandoned;
+
+        if (!waiter.isGranted) {
+          // Timed out, abandoned or interrupted before the lock was handed to it
+          waiter.lock.waiters.remove(waiter);
+        } else if (waiter.isAbandoned) {
+          // Abandoned while the lock was handed to it, so it's handed to the next one
+          handOff(waiter.lock);
+        }
+      }
+    }
+
+    return isGranted;
+  }
+
+  /**
+   * Takes the lock of the key for the transaction if no other transaction holds it, without
+   * waiting.
+   *
+   * @param key - user email
+   * @param transactionId - transaction taking the lock
+   * @return - true if the transaction holds the lock
+   */
+  boolean tryAcquire(String key, String transactionId) {
+    while (true) {
+      KeyLock lock = locks.computeIfAbsent(key, KeyLock::new);
+
+      synchronized (lock) {
+        if (lock.isRemoved) {
+          continue;
+        }
+
+        if (!abandonedTransactions.contains(transactionId)
+            && (lock.holder == null || lock.holder.equals(transactionId))) {
+          lock.holder = transactionId;
+          return true;
+        }
+
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Releases the lock of the key if the transaction holds it, and hands it to the transaction
+   * which waited for it the longest.
+   *
+   * @param key - user email
+   * @param transactionId - transaction releasing the lock
+   */
+  void release(String key, String transactionId) {
+    KeyLock lock = locks.get(key);
+
+    if (lock == null) {
+      return;
+    }
+
+    synchronized (lock) {
+      if (transactionId.equals(lock.holder)) {
+        handOff(lock);
+      }
+    }
+  }
+
+  /**
+   * Records that the transaction was aborted, so that it never gets a lock anymore, and stops it
+   * from waiting for one. Doesn't release a lock it holds already.
+   *
+   * @param transactionId - aborted transaction
+   */
+  void abandon(String transactionId) {
+    if (abandonedTransactions.add(transactionId)) {
+      abandonedTransactionsOrder.add(transactionId);
+
+      while (abandonedTransactions.size() > MAXIMUM_ABANDONED_TRANSACTIONS) {
+        String oldestTransactionId = abandonedTransactionsOrder.poll();
+
+        if (oldestTransactionId == null) {
+          break;
+        }
+
+        abandonedTransactions.remove(oldestTransactionId);
+      }
+    }
+
+    Waiter waiter = waitingTransactions.get(transactionId);
+
+    if (waiter != null) {
+      synchronized (waiter.lock) {
+        waiter.isAbandoned = true;
+      }
+
+      waiter.wakeUp.countDown();
+    }
+  }
+
+  /**
+   * Checks whether the transaction was aborted, among the last aborted transactions.
+   *
+   * @param transactionId - transaction
+   * @return - true if abandon was called for it
+   */
+  boolean isAbandoned(String transactionId) {
+    return abandonedTransactions.contains(transactionId);
+  }
+
+  // Helper method that hands the lock to the transaction which waited for it the longest, or
+  // removes it from the table if none is waiting. Called holding the lock.
+  private void handOff(KeyLock lock) {
+    Waiter nextWaiter = lock.waiters.poll();
+
+    if (nextWaiter == null) {
+      lock.holder = null;
+      lock.isRemoved = true;
+      locks.remove(lock.key, lock);
+    } else {
+      lock.holder = nextWaiter.transactionId;
+      nextWaiter.isGranted = true;
+      nextWaiter.wakeUp.countDown();
+    }
+  }
+
+  private static final class KeyLock {
+
+    private final String key;
+
+    // Guarded by the lock itself
+    private String holder;
+    private final Queue<Waiter> waiters;
+    private boolean isRemoved;
+
+    private KeyLock(String key) {
+      this.key = key;
+      this.waiters = new ArrayDeque<>();
+    }
+  }
+
+  private static final class Waiter {
+
+    private final String transactionId;
+    private final KeyLock lock;
+    private final CountDownLatch wakeUp;
+
+    // Guarded by the lock
+    private boolean isGranted, isAbandoned;
+
+    private Waiter(String transactionId, KeyLock lock) {
+      this.transactionId = transactionId;
+      this.lock = lock;
+      this.wakeUp = new CountDownLatch(1);
+    }
+  }
+}
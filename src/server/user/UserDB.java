@@ -1,6 +1,8 @@
 package server.user;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import logs.Logger;
@@ -211,6 +213,35 @@ public class UserDB {
     return this.userDatabase.get(emailId);
   }
 
+  /**
+   * Copies all the users, for a snapshot of the replica.
+   *
+   * @return - Key: Email, Value: Copy of the User
+   */
+  public Map<String, User> copyUsers() {
+    Map<String, User> users = new HashMap<>();
+
+    for (Map.Entry<String, User> entry : this.userDatabase.entrySet()) {
+      users.put(entry.getKey(), new User(entry.getValue()));
+    }
+
+    return users;
+  }
+
+  /**
+   * Restores the users of a snapshot, when the replica restarts or installs the snapshot of
+   * another replica. The users keep their logged-in status of this replica.
+   *
+   * @param users - Key: Email, Value: User
+   */
+  public synchronized void restoreUsers(Map<String, User> users) {
+    for (User user : users.values()) {
+      user.setLoggedIn(this.loggedInUsersEmailId.contains(user.getEmailId()));
+    }
+
+    this.userDatabase.putAll(users);
+  }
+
   public ConcurrentHashMap<String, User> getUserDatabase() {
     return this.userDatabase;
   }
@@ -8,17 +8,27 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import logs.Logger;
+import server.QuorumCall;
+import server.ReplicaExecutor;
 import server.Server;
 import server.TwoPCServer;
 import server.itinerary.Itinerary;
+import server.itinerary.ItineraryPage;
 
 /**
  * UserDBServer that implements the Server interface and implements the user sign-in methods
@@ -26,13 +36,35 @@ import server.itinerary.Itinerary;
  */
 public class UserDBServer implements Server, TwoPCServer {
 
+  // How long the coordinator waits for the votes and the commit confirmations, and a
+  // participant for the other transactions of the same user to complete
+  private static final long TRANSACTION_TIMEOUT_SECONDS = 15;
+
+  // A transaction prepared on a participant is aborted if its coordinator decides nothing for
+  // this long, e.g. because it crashed, so that its user isn't locked forever. The coordinator
+  // decides within TRANSACTION_TIMEOUT_SECONDS of the first vote.
+  private static final long PREPARED_TIMEOUT_SECONDS = 2 * TRANSACTION_TIMEOUT_SECONDS;
+
   private final UserDB userDB;
   private final String serverId;
 
   private final Map<String, TwoPCServer> participants;
-  private final Map<String, Integer> transactionCommits;
+
+  // Commits of this coordinator which are not confirmed by all the participants yet
+  private final Map<String, PendingCommit> pendingCommits;
+
+  // Transactions in progress on this participant
   private final Map<String, String[]> transactionLog;
+
+  // Lock of every user with a transaction in progress on this participant, Key: user email
+  private final TransactionLockTable transactionLocks;
+
   private final Logger logger, logger2PC, transactionLogger;
+  private final ExecutorService executorService;
+
+  // Times out the commits which are not confirmed in time, and the prepared transactions which
+  // are not decided in time
+  private final ScheduledThreadPoolExecutor commitTimeouts;
 
   public UserDBServer(String serverId) {
     this.userDB = new UserDB("src/logs/user_db/userDB.log", serverId);
@@ -40,12 +72,27 @@ public class UserDBServer implements Server, TwoPCServer {
     this.logger = new Logger("src/logs/userDatabase_" + serverId + ".log", serverId);
 
     this.participants = new HashMap<>();
-    this.transactionCommits = new HashMap<>();
-    this.transactionLog = new HashMap<>();
+    this.pendingCommits = new ConcurrentHashMap<>();
+    this.transactionLog = new ConcurrentHashMap<>();
+    this.transactionLocks = new TransactionLockTable();
+    this.executorService = ReplicaExecutor.getTwoPhaseCommitInstance();
+    this.commitTimeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "2PC-Timeouts-" + serverId);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.commitTimeouts.setRemoveOnCancelPolicy(true);
     this.logger2PC = new Logger("src/logs/user_db/userDB2PC_" + serverId + ".log", serverId);
     this.transactionLogger
         = new Logger("src/logs/transactions/transaction_log_" + serverId + ".log", serverId);
     populateTransactionLog(transactionLog, "src/logs/transaction_log_" + serverId + ".log");
+
+    // The transactions recovered in progress keep the lock of their user, until their
+    // coordinator decides or they time out
+    for (Map.Entry<String, String[]> entry : transactionLog.entrySet()) {
+      transactionLocks.tryAcquire(keyOf(operationOf(entry.getValue())), entry.getKey());
+      scheduleUndecidedAbort(entry.getKey());
+    }
   }
 
   /**
@@ -185,28 +232,25 @@ public class UserDBServer implements Server, TwoPCServer {
 
     // Phase 1 (voting phase) begins
 
-    List<Boolean> votes = Collections.synchronizedList(new ArrayList<>());
+    List<Callable<Boolean>> voteTasks = new ArrayList<>();
 
     for (TwoPCServer participant : participants.values()) {
-      new Thread(() -> {
-        try {
-          votes.add(participant.canCommit(transactionId, operation, serverId));
-        } catch (RemoteException e) {
-          logger2PC.error(true, "Error connecting to RMI registry and while fetching the"
-              + " server stub.");
-        }
-      }).start();
+      voteTasks.add(() -> participant.canCommit(transactionId, operation, serverId));
     }
 
-    long startTime = System.currentTimeMillis();
-    while (true) {
-      if (votes.size() == participants.size()) {
-        break;
-      }
-      if (System.currentTimeMillis()-startTime > 15000) {
-        votes.add(false);
-        break;
-      }
+    // Every participant has to vote yes, so the voting phase is over at the first no
+    List<Boolean> votes = new ArrayList<>();
+
+    try {
+      votes = QuorumCall.invoke(executorService, voteTasks, participants.size(),
+          Boolean.TRUE::equals, TRANSACTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException interruptedException) {
+      logger2PC.error(true, "Transaction ", transactionId, ": Interrupted while voting!");
+    }
+
+    // A participant that failed or did not vote in time counts as a no
+    if (votes.size() < participants.size() || votes.contains(null)) {
+      votes.add(false);
     }
 
     logger2PC.debug(true, "Transaction ", transactionId, ": Voting phase completed");
@@ -218,14 +262,14 @@ public class UserDBServer implements Server, TwoPCServer {
 
     if (votes.contains(false)) {
       for (TwoPCServer participant : participants.values()) {
-        new Thread(() -> {
+        sendDecision(() -> {
           try {
             participant.abortTransaction(transactionId);
           } catch (RemoteException e) {
             logger2PC.error(true, "Error connecting to RMI registry and while fetching the"
                 + " server stub.");
           }
-        }).start();
+        });
       }
 
       logger2PC.debug(true, "Transaction ", transactionId, " is being aborted.");
@@ -234,117 +278,178 @@ public class UserDBServer implements Server, TwoPCServer {
       return "Failed";
     } else {
       logger2PC.debug(true, "Transaction ", transactionId, ": Starting commits.");
+
+      // Registered before the first commit, whose confirmation can arrive right away
+      waitForCommitResponses(transactionId);
       String response = doCommit(transactionId);
 
       for (Map.Entry<String, TwoPCServer> entry : participants.entrySet()) {
         if (!serverId.equals(entry.getKey())) {
-          new Thread(() -> {
+          sendDecision(() -> {
             try {
               entry.getValue().doCommit(transactionId);
             } catch (RemoteException e) {
               logger2PC.error(true, "Error connecting to RMI registry and while fetching the"
                   + " server stub.");
             }
-          }).start();
+          });
         }
       }
 
-      new Thread(() -> waitForCommitResponses(transactionId)).start();
       return response;
     }
 
     // Phase 2 (completion as per the outcome of vote) completed
   }
 
+  // Helper method that sends the decision of a transaction to a participant in the background.
+  // A decision is never dropped: if the executor is full, it is sent from this thread.
+  private void sendDecision(Runnable decision) {
+    try {
+      executorService.execute(decision);
+    } catch (RejectedExecutionException rejectedExecutionException) {
+      decision.run();
+    }
+  }
+
+  // Helper method that registers the commit of the transaction, which completes when every
+  // participant confirmed it with haveCommitted, or times out. No thread waits for it.
   private void waitForCommitResponses(String transactionId) {
-    long startTime = System.currentTimeMillis();
     logger2PC.debug(true, "Transaction ", transactionId, ": Waiting for commit responses");
 
-    while (true) {
+    PendingCommit pendingCommit = new PendingCommit(participants.size());
+    pendingCommits.put(transactionId, pendingCommit);
 
-      if (transactionCommits.get(transactionId) == participants.size()) {
-        logger2PC.debug(true, "Transaction ", transactionId, ": Received all commit " +
-            "responses. Removing transaction.");
-        transactionCommits.remove(transactionId);
-        break;
+    pendingCommit.timeout = commitTimeouts.schedule(() -> {
+      if (pendingCommits.remove(transactionId, pendingCommit)) {
+        logger2PC.error(true, "Transaction ", transactionId,
+            ": Timed out while waiting for all commit responses!");
       }
-
-      if (System.currentTimeMillis()-startTime > 15000) {
-        logger2PC.error(true, "Timed out while waiting for all commit responses!");
-        break;
-      }
-    }
+    }, TRANSACTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
   }
 
   @Override
   public boolean canCommit(String transactionId, String[] operation, String coordinatorId)
       throws RemoteException {
 
-    boolean canCommit = true;
-    long startTime = System.currentTimeMillis();
     logger2PC.debug(true, "Transaction ", transactionId, ": canCommit() invoked");
 
-    while(true) {
-      String key = operation[1];
+    String key = keyOf(operation);
+    boolean isLocked;
 
-      for (String txId : transactionLog.keySet()) {
-        String[] log = transactionLog.get(txId);
+    // Waits until the other transaction of the same user is committed or aborted, if there is
+    // one, and votes no if it takes longer than the timeout
+    try {
+      isLocked = transactionLocks.acquire(key, transactionId, TRANSACTION_TIMEOUT_SECONDS,
+          TimeUnit.SECONDS);
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      isLocked = false;
+    }
 
-        if (key.equals(log[3]) && !log[0].equals("Committed") && !log[0].equals("Aborted")) {
-          canCommit = false;
-          break;
-        }
-      }
-      if (canCommit) {
-        break;
-      }
-      if (System.currentTimeMillis()-startTime > 15000) {
-        break;
-      }
+    if (!isLocked) {
+      logger2PC.debug(true, "Transaction ", transactionId, ": Another transaction of ", key,
+          " is still in progress. Voting no.");
+      return false;
+    }
+
+    String[] log = new String[6];
+    log[0] = "Prepared to commit";
+    log[1] = coordinatorId;
+    int p = 2;
+
+    for (String op : operation) {
+      log[p] = op;
+      p++;
     }
 
-    if (canCommit) {
-      String[] log = new String[6];
-      log[0] = "Prepared to commit";
-      log[1] = coordinatorId;
-      int p = 2;
+    log[5] = "0";
 
-      for (String op : operation) {
-        log[p] = op;
-        p++;
+    // Prepared unless it was aborted meanwhile, atomically with abortTransaction
+    String[] preparedLog = transactionLog.compute(transactionId, (id, existingLog) -> {
+      if (transactionLocks.isAbandoned(id)) {
+        return existingLog;
       }
 
-      log[5] = "0";
-      transactionLog.put(transactionId, log);
-      transactionLogger.logTransaction(transactionId, log);
-      logger2PC.debug(true, "Transaction ", transactionId, ": Created transaction log",
-          Arrays.asList(log).toString());
+      transactionLogger.logTransaction(id, log);
+      return log;
+    });
 
-      return true;
-    } else {
+    if (preparedLog != log) {
+      logger2PC.debug(true, "Transaction ", transactionId, ": Aborted before the vote. " +
+          "Voting no.");
+      transactionLocks.release(key, transactionId);
       return false;
     }
+
+    logger2PC.debug(true, "Transaction ", transactionId, ": Created transaction log",
+        Arrays.asList(log).toString());
+    scheduleUndecidedAbort(transactionId);
+
+    return true;
+  }
+
+  // Helper method that aborts the transaction if it's still prepared after
+  // PREPARED_TIMEOUT_SECONDS
+  private void scheduleUndecidedAbort(String transactionId) {
+    commitTimeouts.schedule(() -> {
+      if (abort(transactionId, true)) {
+        logger2PC.error(true, "Transaction ", transactionId, ": Not decided by the " +
+            "coordinator in time. Aborted.");
+      }
+    }, PREPARED_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  // Helper method that returns the email of the user of the operation, whose lock the
+  // transaction holds: Name|Email|Password (signup), Email|Password (login) or LOGOUT|Email
+  private static String keyOf(String[] operation) {
+    return operation.length == 2 && !operation[0].equals("LOGOUT") ? operation[0] : operation[1];
+  }
+
+  // Helper method that returns the operation of a transaction from its transaction log
+  private static String[] operationOf(String[] log) {
+    int operationSize = (log[4] == null) ? 2 : 3;
+    String[] operation = new String[operationSize];
+    System.arraycopy(log, 2, operation, 0, operationSize);
+    return operation;
+  }
+
+  // Helper method that removes a committed or aborted transaction, and hands the lock of its
+  // user to the next transaction waiting for it
+  private void removeTransaction(String transactionId) {
+    String[] log = transactionLog.remove(transactionId);
+
+    if (log != null) {
+      transactionLocks.release(keyOf(operationOf(log)), transactionId);
+    }
   }
 
   @Override
   public String doCommit(String transactionId) throws RemoteException {
     logger2PC.debug(true, "Transaction ", transactionId, ": doCommit() invoked");
 
-    String[] log = transactionLog.get(transactionId);
-    log[0] = "Started commit";
+    // Started atomically with abortTransaction, so a transaction is never both
+    String[] log = transactionLog.computeIfPresent(transactionId, (id, preparedLog) -> {
+      preparedLog[0] = "Started commit";
+      return preparedLog;
+    });
+
+    if (log == null) {
+      logger2PC.error(true, "Transaction ", transactionId, ": Can't commit, the transaction " +
+          "is not prepared or was aborted.");
+      return "Failed";
+    }
+
     transactionLogger.logTransaction(transactionId, log);
 
-    int operationSize = (log[4] == null) ? 2 : 3;
-    String[] operation = new String[operationSize];
-    System.arraycopy(log, 2, operation, 0, operationSize);
-    String response = this.userDB.executeOperation(operation);
+    String response = this.userDB.executeOperation(operationOf(log));
     log[0] = "Committed";
 
     transactionLogger.logTransaction(transactionId, log);
     participants.get(log[1]).haveCommitted(transactionId);
     logger2PC.debug(true, "Transaction", transactionId, ": Transaction log",
         Arrays.asList(log).toString());
-    transactionLog.remove(transactionId);
+    removeTransaction(transactionId);
 
     return response;
   }
@@ -352,26 +457,76 @@ public class UserDBServer implements Server, TwoPCServer {
   @Override
   public void haveCommitted(String transactionId) throws RemoteException {
     logger2PC.debug(true, "Transaction ", transactionId, ": haveCommitted() invoked");
-    transactionCommits.put(transactionId, transactionCommits.getOrDefault(transactionId, 0) + 1);
+
+    PendingCommit pendingCommit = pendingCommits.get(transactionId);
+
+    if (pendingCommit != null && pendingCommit.remainingResponses.decrementAndGet() == 0
+        && pendingCommits.remove(transactionId, pendingCommit)) {
+      pendingCommit.timeout.cancel(false);
+      logger2PC.debug(true, "Transaction ", transactionId, ": Received all commit " +
+          "responses. Removing transaction.");
+    }
   }
 
   @Override
   public void abortTransaction(String transactionId) throws RemoteException {
     logger2PC.debug(true, "Transaction ", transactionId, ": doAbort() invoked");
 
-    String[] log = transactionLog.get(transactionId);
-
-    if (log != null) {
-      log[0] = "Aborted";
-      transactionLogger.logTransaction(transactionId, log);
-      logger2PC.debug(true, "Transaction ", transactionId, ": Transaction log", Arrays.asList(log).toString());
-      transactionLog.remove(transactionId);
-    } else {
+    if (!abort(transactionId, false)) {
+      // Still waiting for the lock of its user, or not voted yet
       String[] logEmpty = {"Aborted", "", "", "", "", ""};
       transactionLogger.logTransaction(transactionId, logEmpty);
     }
   }
 
+  // Helper method that aborts the transaction, and releases the lock of its user if it holds it.
+  // It's recorded as aborted first, so that a vote arriving after the abort votes no.
+  // Returns whether a prepared transaction was aborted.
+  private boolean abort(String transactionId, boolean onlyIfUndecided) {
+    String[][] abortedLog = new String[1][];
+
+    if (!onlyIfUndecided) {
+      transactionLocks.abandon(transactionId);
+    }
+
+    // compute, unlike computeIfPresent, waits for a vote which is preparing it right now
+    transactionLog.compute(transactionId, (id, log) -> {
+      if (log == null || (onlyIfUndecided && !log[0].equals("Prepared to commit"))) {
+        return log;
+      }
+
+      log[0] = "Aborted";
+      transactionLogger.logTransaction(id, log);
+      abortedLog[0] = log;
+      return null;
+    });
+
+    if (abortedLog[0] == null) {
+      return false;
+    }
+
+    if (onlyIfUndecided) {
+      transactionLocks.abandon(transactionId);
+    }
+
+    logger2PC.debug(true, "Transaction ", transactionId, ": Transaction log",
+        Arrays.asList(abortedLog[0]).toString());
+    transactionLocks.release(keyOf(operationOf(abortedLog[0])), transactionId);
+
+    return true;
+  }
+
+  // Commit of a transaction, waiting for the confirmations of the participants
+  private static final class PendingCommit {
+
+    private final AtomicInteger remainingResponses;
+    private volatile ScheduledFuture<?> timeout;
+
+    private PendingCommit(int participants) {
+      this.remainingResponses = new AtomicInteger(participants);
+    }
+  }
+
   // Below methods are implemented in KeyValueStoreServer
   @Override
   public String executeOperation(String inputMessage, String clientEmailId) throws RemoteException {
@@ -382,4 +537,10 @@ public class UserDBServer implements Server, TwoPCServer {
   public String putItinerary(Itinerary itinerary, String clientEmailId) throws RemoteException {
     return null;
   }
+
+  @Override
+  public ItineraryPage listItineraries(String listType, String cursor, int limit,
+                                       String clientEmailId) throws RemoteException {
+    return null;
+  }
 }
\ No newline at end of file